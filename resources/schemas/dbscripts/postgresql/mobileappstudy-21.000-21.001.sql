@@ -0,0 +1,21 @@
+CREATE TABLE mobileappstudy.AppliedDesignVersion
+(
+    RowId SERIAL,
+    ActivityId VARCHAR(200) NOT NULL,
+    SurveyVersion VARCHAR(5) NOT NULL,
+    -- Set when storing a response failed because of the design, so the design is applied again
+    Invalid BOOLEAN NOT NULL DEFAULT FALSE,
+
+    Created TIMESTAMP NOT NULL,
+    Container ENTITYID NOT NULL,
+
+    CONSTRAINT PK_AppliedDesignVersion PRIMARY KEY (RowId),
+    CONSTRAINT UQ_AppliedDesignVersion UNIQUE (Container, ActivityId, SurveyVersion)
+);
+
+-- Seed with the activity versions that have already been processed, including responses since forwarded or being forwarded
+INSERT INTO mobileappstudy.AppliedDesignVersion (ActivityId, SurveyVersion, Created, Container)
+SELECT ActivityId, SurveyVersion, MIN(Processed), Container
+FROM mobileappstudy.Response
+WHERE Status IN (1, 3, 4) AND Processed IS NOT NULL
+GROUP BY Container, ActivityId, SurveyVersion;
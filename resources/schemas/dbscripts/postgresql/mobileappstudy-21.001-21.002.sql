@@ -0,0 +1,19 @@
+-- When a server claimed the response for forwarding (Forwarding) or shredding (Shredding), so the claim can expire
+-- without overwriting Processed, which records when the response was shredded
+ALTER TABLE mobileappstudy.Response ADD COLUMN ClaimedAt TIMESTAMP;
+
+-- Pending responses, for startup recovery and shredding in batches per activity version. Responses a server has
+-- claimed for shredding (Shredding) are included, since other servers pick them up again once the claim expires.
+-- Only a small fraction of responses are ever in either state, so a partial index stays small.
+CREATE INDEX IX_Response_Pending
+  ON mobileappstudy.Response (Container, ActivityId, SurveyVersion, RowId)
+  WHERE Status IN (0, 5);
+
+-- Responses waiting to be forwarded (Processed) or claimed by a forwarding job (Forwarding), paged by RowId
+CREATE INDEX IX_Response_ToForward
+  ON mobileappstudy.Response (Container, RowId)
+  WHERE Status IN (1, 4);
+
+-- Checks for other responses to an activity version, e.g. whether its design is already known
+CREATE INDEX IX_Response_ActivityVersion
+  ON mobileappstudy.Response (Container, ActivityId, SurveyVersion, Status);
@@ -0,0 +1,22 @@
+-- Tracks the deletion of withdrawn participants' data, which runs in the background after withdrawal
+CREATE TABLE mobileappstudy.ParticipantPurge
+(
+    RowId SERIAL,
+    ParticipantId INTEGER NOT NULL,
+    Status VARCHAR(20) NOT NULL,
+    ListsTotal INTEGER,
+    ListsDone INTEGER NOT NULL DEFAULT 0,
+    RowsDeleted INTEGER NOT NULL DEFAULT 0,
+    ErrorMessage VARCHAR(1000),
+    -- When a server claimed the purge, so a purge left by a server that stopped can be taken over once this expires
+    ClaimedAt TIMESTAMP,
+
+    Created TIMESTAMP NOT NULL,
+    Started TIMESTAMP,
+    Completed TIMESTAMP,
+    Container ENTITYID NOT NULL,
+
+    CONSTRAINT PK_ParticipantPurge PRIMARY KEY (RowId)
+);
+
+CREATE INDEX IX_ParticipantPurge_Container ON mobileappstudy.ParticipantPurge (Container, ParticipantId);
@@ -15,6 +15,9 @@
         const basicPanel = $('#basicAuthPanel');
         const oauthPanel = $('#oauthPanel');
 
+        // delivery settings are optional, so only toggled rather than marked required
+        $('#deliveryPanel').toggle(selected === 'Basic' || selected === 'OAuth');
+
         switch (selected) {
             case 'Basic':
                 showPanel(basicPanel);
@@ -75,19 +75,7 @@ public abstract class DynamicListProcessor
         if (prop != null)
         {
             //existing property
-            if (prop.getPropertyDescriptor().getJdbcType() != field.getPropertyStorageType())
-                throw new InvalidDesignException(String.format(LogMessageFormats.RESULT_TYPE_MISMATCH, field.getKey()));
-
-            //Update a string field's size. Increase only.
-            if (prop.getPropertyType() == PropertyType.STRING && field.getMaxLength() != null)
-            {
-                //Logged in List audit log
-                if (field.getMaxLength() > prop.getScale())
-                    prop.setScale(field.getMaxLength());
-            }
-
-            if (field.getLabel() != null && !field.getLabel().equals(prop.getLabel()))
-                prop.setLabel(field.getLabel());
+            compareStepProperty(prop, field, true);
         }
         else
         {
@@ -98,6 +86,50 @@ public abstract class DynamicListProcessor
         return prop;
     }
 
+    /**
+     * Compare a field with the domain's existing property, without changing the domain
+     * @return true if ensureStepProperty would change the domain
+     * @throws InvalidDesignException if the field's type doesn't match the existing property
+     */
+    protected boolean isStepPropertyChanged(Domain listDomain, IDynamicListField field) throws InvalidDesignException
+    {
+        DomainProperty prop = listDomain.getPropertyByName(field.getKey());
+        return prop == null || compareStepProperty(prop, field, false);
+    }
+
+    /**
+     * Compare a field with its existing property, shared by ensureStepProperty and isStepPropertyChanged so they
+     * can't disagree about what counts as a change
+     * @param update if true, update the property to match the field
+     * @return true if the property differs from the field
+     * @throws InvalidDesignException if the field's type doesn't match the property
+     */
+    private boolean compareStepProperty(DomainProperty prop, IDynamicListField field, boolean update) throws InvalidDesignException
+    {
+        if (prop.getPropertyDescriptor().getJdbcType() != field.getPropertyStorageType())
+            throw new InvalidDesignException(String.format(LogMessageFormats.RESULT_TYPE_MISMATCH, field.getKey()));
+
+        boolean changed = false;
+
+        //Update a string field's size. Increase only.
+        if (prop.getPropertyType() == PropertyType.STRING && field.getMaxLength() != null && field.getMaxLength() > prop.getScale())
+        {
+            //Logged in List audit log
+            if (update)
+                prop.setScale(field.getMaxLength());
+            changed = true;
+        }
+
+        if (field.getLabel() != null && !field.getLabel().equals(prop.getLabel()))
+        {
+            if (update)
+                prop.setLabel(field.getLabel());
+            changed = true;
+        }
+
+        return changed;
+    }
+
     protected static DomainProperty getNewDomainProperty(Domain domain, IDynamicListField step)
     {
         return getNewDomainProperty(domain, step.getKey(), step.getPropertyStorageType(), step.getLabel(), step.getDescription(), step.getMaxLength());
@@ -131,6 +163,7 @@ public abstract class DynamicListProcessor
         public static final String MISSING_METADATA = "Design document does not contain all the required fields (activityId, steps)";
         public static final String START_UPDATE_SURVEY = "Getting new survey version: Study: %1$s, Survey: %2$s, Version: %3$s";
         public static final String END_SURVEY_UPDATE = "Survey update completed";
+        public static final String LIST_UNCHANGED = "No changes to list [%1$s], skipping save";
         public static final String UNABLE_CREATE_LIST = "Unable to create new list. List: %1$s";
         public static final String LIST_CREATED = "List [%1$s] successfully created.";
         public static final String SUBLIST_PROPERTY_ERROR = "Unable to add sub-list property: %1$s";
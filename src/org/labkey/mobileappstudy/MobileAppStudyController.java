@@ -17,7 +17,7 @@
 package org.labkey.mobileappstudy;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
-import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
@@ -64,12 +64,17 @@ import org.labkey.api.view.HttpView;
 import org.labkey.api.view.JspView;
 import org.labkey.api.view.NavTree;
 import org.labkey.api.view.ViewContext;
+import org.labkey.mobileappstudy.data.EnrollmentToken;
 import org.labkey.mobileappstudy.data.EnrollmentTokenBatch;
 import org.labkey.mobileappstudy.data.MobileAppStudy;
 import org.labkey.mobileappstudy.data.Participant;
+import org.labkey.mobileappstudy.data.RawJsonDeserializer;
 import org.labkey.mobileappstudy.data.SurveyMetadata;
 import org.labkey.mobileappstudy.data.SurveyResponse;
+import org.labkey.mobileappstudy.forwarder.ForwardingCircuitBreaker;
+import org.labkey.mobileappstudy.forwarder.ForwardingScheduler;
 import org.labkey.mobileappstudy.forwarder.ForwardingType;
+import org.labkey.mobileappstudy.forwarder.PayloadFormat;
 import org.labkey.mobileappstudy.participantproperties.ParticipantProperty;
 import org.labkey.mobileappstudy.query.ReadResponsesQuerySchema;
 import org.labkey.mobileappstudy.security.GenerateEnrollmentTokensPermission;
@@ -82,7 +87,9 @@ import org.springframework.validation.BindException;
 import org.springframework.validation.Errors;
 import org.springframework.web.servlet.ModelAndView;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -97,6 +104,7 @@ public class MobileAppStudyController extends SpringActionController
     private static final DefaultActionResolver _actionResolver = new DefaultActionResolver(MobileAppStudyController.class);
 
     public static final String NAME = "mobileappstudy";
+    private static final int SC_TOO_MANY_REQUESTS = 429;
 
     public MobileAppStudyController()
     {
@@ -261,12 +269,17 @@ public class MobileAppStudyController extends SpringActionController
         @Override
         public Object execute(ResponseForm form, BindException errors)
         {
+            //Turn the response away if the study's processing queue is already full
+            Container container = form.getParticipant().getContainer();
+            if (!ShredderScheduler.get().hasCapacity(container))
+                return tooManyRequests();
+
             //Record response blob
             MobileAppStudyManager manager = MobileAppStudyManager.get();
             //Null checks are done in the validate method
             SurveyResponse resp = new SurveyResponse(
                     form.getParticipantId(),
-                    form.getData().toString(),
+                    form.getData(),
                     form.getMetadata().getActivityId(),
                     form.getMetadata().getVersion()
             );
@@ -274,10 +287,86 @@ public class MobileAppStudyController extends SpringActionController
 
             //Add a parsing job
             final Integer rowId = resp.getRowId();
-            manager.enqueueSurveyResponse(() -> MobileAppStudyManager.get().shredSurveyResponse(rowId, getUser()));
+            if (!manager.enqueueSurveyResponse(resp.getContainer(), () -> MobileAppStudyManager.get().shredSurveyResponse(rowId, getUser())))
+            {
+                //Queue filled up since the check above, remove the response so the client's retry doesn't duplicate it
+                manager.deleteResponse(rowId);
+                return tooManyRequests();
+            }
 
             return success();
         }
+
+        private ApiSimpleResponse tooManyRequests()
+        {
+            getViewContext().getResponse().setStatus(SC_TOO_MANY_REQUESTS);
+            getViewContext().getResponse().setHeader("Retry-After", String.valueOf(ShredderScheduler.RETRY_AFTER_SECONDS));
+
+            ApiSimpleResponse response = new ApiSimpleResponse();
+            response.put("success", false);
+            response.put("message", "Server is busy processing responses for this study. Please retry later.");
+            return response;
+        }
+    }
+
+    /**
+     * Report the state of the response shredder queues
+     */
+    @RequiresSiteAdmin
+    public class ShredderStatusAction extends ReadOnlyApiAction<Object>
+    {
+        @Override
+        public Object execute(Object o, BindException errors)
+        {
+            return success(ShredderScheduler.get().getStatistics());
+        }
+    }
+
+    /**
+     * Report the forwarding circuit state of each study with forwarding enabled
+     */
+    @RequiresSiteAdmin
+    public class ForwardingHealthAction extends ReadOnlyApiAction<Object>
+    {
+        @Override
+        public Object execute(Object o, BindException errors)
+        {
+            List<Map<String, Object>> health = new ArrayList<>();
+            for (String containerId : ForwardingScheduler.get().enabledContainers())
+            {
+                Container c = ContainerManager.getForId(containerId);
+                if (c != null)
+                    health.add(ForwardingCircuitBreaker.get().getHealth(c));
+            }
+
+            return success(health);
+        }
+    }
+
+    /**
+     * Report the progress of feeding responses left pending at startup to the shredder
+     */
+    @RequiresSiteAdmin
+    public class RecoveryStatusAction extends ReadOnlyApiAction<Object>
+    {
+        @Override
+        public Object execute(Object o, BindException errors)
+        {
+            return success(RecoveryFeeder.get().getStatus());
+        }
+    }
+
+    /**
+     * Report the progress of the background deletions of withdrawn participants' data in the study
+     */
+    @RequiresPermission(AdminPermission.class)
+    public class ParticipantPurgeStatusAction extends ReadOnlyApiAction<Object>
+    {
+        @Override
+        public Object execute(Object o, BindException errors)
+        {
+            return success(ParticipantPurger.get().getPurges(getContainer()));
+        }
     }
 
     /**
@@ -329,12 +418,18 @@ public class MobileAppStudyController extends SpringActionController
                     errors.rejectValue("studyId", ERROR_MSG, "Study with StudyId '" + form.getShortName() + "' does not exist");
                 else if (StringUtils.isNotEmpty(form.getToken()))
                 {
-                    if (MobileAppStudyManager.get().hasParticipant(form.getShortName(), form.getToken()))
-                        errors.reject(ERROR_MSG, "Token already in use");
-                    else if (!MobileAppStudyManager.get().isChecksumValid(form.getToken()))
+                    // A token in use always has a valid checksum, so checking the checksum first skips the query for
+                    // mistyped tokens without changing which error is reported
+                    if (!MobileAppStudyManager.get().isChecksumValid(form.getToken()))
                         errors.rejectValue("token", ERROR_MSG, "Invalid token: '" + form.getToken() + "'");
-                    else if (!MobileAppStudyManager.get().isValidStudyToken(form.getToken(), form.getShortName()))
-                        errors.rejectValue("token", ERROR_MSG, "Unknown token: '" + form.getToken() + "'");
+                    else
+                    {
+                        EnrollmentToken.State state = MobileAppStudyManager.get().getEnrollmentTokenState(form.getShortName(), form.getToken());
+                        if (state == EnrollmentToken.State.InUse)
+                            errors.reject(ERROR_MSG, "Token already in use");
+                        else if (state == EnrollmentToken.State.Unknown)
+                            errors.rejectValue("token", ERROR_MSG, "Unknown token: '" + form.getToken() + "'");
+                    }
                 }
                 // we allow for the possibility that someone can enroll without using an enrollment token
                 else if (MobileAppStudyManager.get().enrollmentTokenRequired(form.getShortName()))
@@ -838,7 +933,7 @@ public class MobileAppStudyController extends SpringActionController
                 else
                 {
                     //Check if there is an associated study for the appToken
-                    _study = MobileAppStudyManager.get().getStudyFromParticipant(_participant);
+                    _study = MobileAppStudyManager.get().getStudyFromAppToken(appToken);
                     if (_study == null)
                         errors.reject(ERROR_MSG, "AppToken not associated with study");
                 }
@@ -858,7 +953,7 @@ public class MobileAppStudyController extends SpringActionController
     public static class ResponseForm extends ParticipantForm
     {
         private String _type; // Unused, but don't delete... Jackson binding against our test responses goes crazy without it
-        private JsonNode _data;
+        private String _data;
         private SurveyMetadata _metadata;
 
         public SurveyMetadata getMetadata()
@@ -870,11 +965,12 @@ public class MobileAppStudyController extends SpringActionController
             _metadata = metadata;
         }
 
-        public JsonNode getData()
+        public String getData()
         {
             return _data;
         }
-        public void setData(@NotNull JsonNode data)
+        @JsonDeserialize(using = RawJsonDeserializer.class)
+        public void setData(@NotNull String data)
         {
             _data = data;
         }
@@ -988,6 +1084,10 @@ public class MobileAppStudyController extends SpringActionController
         private String tokenField;
         private String header;
         private String oauthURL;
+        private Integer maxInFlight;
+        private boolean preserveOrder;
+        private PayloadFormat payloadFormat = PayloadFormat.Single;
+        private Integer batchSize;
 
         public ForwardingType getForwardingType ()
         {
@@ -1049,6 +1149,46 @@ public class MobileAppStudyController extends SpringActionController
             this.tokenField = tokenField;
         }
 
+        public Integer getMaxInFlight()
+        {
+            return maxInFlight;
+        }
+
+        public void setMaxInFlight(Integer maxInFlight)
+        {
+            this.maxInFlight = maxInFlight;
+        }
+
+        public boolean isPreserveOrder()
+        {
+            return preserveOrder;
+        }
+
+        public void setPreserveOrder(boolean preserveOrder)
+        {
+            this.preserveOrder = preserveOrder;
+        }
+
+        public PayloadFormat getPayloadFormat()
+        {
+            return payloadFormat;
+        }
+
+        public void setPayloadFormat(PayloadFormat payloadFormat)
+        {
+            this.payloadFormat = payloadFormat;
+        }
+
+        public Integer getBatchSize()
+        {
+            return batchSize;
+        }
+
+        public void setBatchSize(Integer batchSize)
+        {
+            this.batchSize = batchSize;
+        }
+
         public String getHeader()
         {
             return header;
@@ -16,25 +16,33 @@
 
 package org.labkey.mobileappstudy;
 
+import com.google.common.collect.Lists;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.labkey.api.cache.Cache;
+import org.labkey.api.cache.CacheManager;
 import org.labkey.api.collections.ArrayListMap;
 import org.labkey.api.data.ColumnInfo;
 import org.labkey.api.data.CompareType;
 import org.labkey.api.data.Container;
-import org.labkey.api.data.ContainerManager;
 import org.labkey.api.data.DbScope;
 import org.labkey.api.data.JdbcType;
+import org.labkey.api.data.Parameter;
 import org.labkey.api.data.Results;
 import org.labkey.api.data.SQLFragment;
 import org.labkey.api.data.Selector;
 import org.labkey.api.data.SimpleFilter;
 import org.labkey.api.data.SqlExecutor;
 import org.labkey.api.data.SqlSelector;
+import org.labkey.api.data.Sort;
 import org.labkey.api.data.Table;
 import org.labkey.api.data.TableInfo;
 import org.labkey.api.data.TableSelector;
@@ -42,6 +50,7 @@ import org.labkey.api.exp.ObjectProperty;
 import org.labkey.api.exp.list.ListDefinition;
 import org.labkey.api.exp.list.ListItem;
 import org.labkey.api.exp.list.ListService;
+import org.labkey.api.exp.property.DomainProperty;
 import org.labkey.api.query.BatchValidationException;
 import org.labkey.api.query.FieldKey;
 import org.labkey.api.query.InvalidKeyException;
@@ -56,8 +65,8 @@ import org.labkey.api.security.roles.SubmitterRole;
 import org.labkey.api.util.ChecksumUtil;
 import org.labkey.api.util.ContainerUtil;
 import org.labkey.api.util.GUID;
-import org.labkey.api.util.JobRunner;
 import org.labkey.api.util.Pair;
+import org.labkey.api.util.TestContext;
 import org.labkey.mobileappstudy.data.EnrollmentToken;
 import org.labkey.mobileappstudy.data.EnrollmentTokenBatch;
 import org.labkey.mobileappstudy.data.MobileAppStudy;
@@ -69,6 +78,8 @@ import org.labkey.mobileappstudy.data.SurveyResponse.ResponseStatus;
 import org.labkey.mobileappstudy.data.SurveyResult;
 import org.labkey.mobileappstudy.data.TextChoiceResult;
 import org.labkey.mobileappstudy.forwarder.ForwarderProperties;
+import org.labkey.mobileappstudy.forwarder.ForwardingCircuitBreaker;
+import org.labkey.mobileappstudy.forwarder.ForwardingDispatcher;
 import org.labkey.mobileappstudy.forwarder.ForwardingScheduler;
 import org.labkey.mobileappstudy.forwarder.ForwardingType;
 import org.labkey.mobileappstudy.forwarder.SurveyResponseForwardingJob;
@@ -81,16 +92,17 @@ import org.labkey.mobileappstudy.surveydesign.SurveyDesignProvider;
 import org.labkey.mobileappstudy.surveydesign.SurveyStep;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
@@ -100,20 +112,28 @@ public class MobileAppStudyManager
     private static final String TRUNCATED_MESSAGE_SUFFIX =  "... (message truncated)";
     private static final Integer ERROR_MESSAGE_MAX_SIZE = 1000 - TRUNCATED_MESSAGE_SUFFIX.length();
     private static final Integer TOKEN_SIZE = 8;
+    private static final int SHRED_BATCH_SIZE = 100;
+    private static final int METADATA_INSERT_BATCH_SIZE = 1000;
+    // Rows deleted from a list per call to its update service when removing a participant's data
+    private static final int LIST_DELETE_BATCH_SIZE = 1000;
+    private static final int TOKEN_INSERT_BATCH_SIZE = 5000;
+    // How long a forwarding job's claim on a response is honored before another job may take it over
+    private static final long FORWARDING_CLAIM_LEASE_MS = TimeUnit.HOURS.toMillis(1);
+    // How long a server's claim on a response it is shredding is honored, e.g. before a crashed server's claims are taken over
+    static final long SHREDDING_CLAIM_LEASE_MS = TimeUnit.MINUTES.toMillis(30);
     private static final String TOKEN_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
     private static final MobileAppStudyManager _instance = new MobileAppStudyManager();
     private static final ChecksumUtil _checksumUtil = new ChecksumUtil(TOKEN_CHARS);
 
-    private static final int THREAD_COUNT = 10;
-    private static JobRunner _shredder;
     private static final Logger logger = LogManager.getLogger(MobileAppStudy.class);
 
+    // Participant and study for recently seen appTokens. Evicted on withdrawal and cleared when studies change.
+    private final Cache<String, AppTokenEntry> _appTokenCache = CacheManager.getCache(10000, TimeUnit.HOURS.toMillis(1), "Mobile app participants by app token");
+
     public static final String OTHER_OPTION_TITLE = "_Other_Text";
 
     private MobileAppStudyManager()
     {
-        if (_shredder == null)
-            _shredder = new JobRunner("MobileAppResponseShredder", THREAD_COUNT);
     }
 
     public static MobileAppStudyManager get()
@@ -124,15 +144,12 @@ public class MobileAppStudyManager
     void doStartup()
     {
         ForwardingScheduler.get().schedule();
+        ForwardingDispatcher.get().start();
+        StudyDesignRegistry.get().warm();
+        ParticipantPurger.get().start();
 
         //Pick up any pending shredder jobs that might have been lost at shutdown/crash/etc
-        Collection<Integer> pendingResponses = getPendingResponseIds();
-        if (pendingResponses != null)
-        {
-            pendingResponses.forEach(rowId ->
-                enqueueSurveyResponse(() -> shredSurveyResponse(rowId, null))
-            );
-        }
+        RecoveryFeeder.get().start();
     }
 
     /**
@@ -163,23 +180,39 @@ public class MobileAppStudyManager
     }
 
     /**
-     * Determines if the token provided is one that is associated with the study short name. This does not check the
-     * validity of the token itself.
+     * Determine whether an enrollment token belongs to the study identified by the short name and whether it is in
+     * use, with a single query. This does not check the validity of the token itself.
+     * @param shortName identifier for the study
      * @param token the token string
-     * @param shortName unique identifier for the study
-     * @return true or false to indicate if the given string is associated with the study.
+     * @return Unknown if the token isn't one of the study's, otherwise whether a participant has enrolled with it
      */
-    public boolean isValidStudyToken(@NotNull String token, @NotNull String shortName)
+    public EnrollmentToken.State getEnrollmentTokenState(@NotNull String shortName, @NotNull String token)
     {
-        List<Container> containers = getStudyContainers(shortName);
-        if (containers.isEmpty())
-            return false;
-        MobileAppStudySchema schema = MobileAppStudySchema.getInstance();
+        List<EnrollmentToken> tokens = getEnrollmentTokens(getStudies(shortName), token);
+        if (tokens.isEmpty())
+            return EnrollmentToken.State.Unknown;
+
+        return tokens.stream().anyMatch(t -> t.getParticipantId() != null) ? EnrollmentToken.State.InUse : EnrollmentToken.State.Available;
+    }
+
+    /**
+     * @param studies to look for the token in
+     * @param tokenValue the token string
+     * @return the enrollment token records for the token in the studies' containers, in study order
+     */
+    private List<EnrollmentToken> getEnrollmentTokens(@NotNull List<MobileAppStudy> studies, @NotNull String tokenValue)
+    {
+        if (studies.isEmpty())
+            return Collections.emptyList();
+
+        List<Container> containers = studies.stream().map(MobileAppStudy::getContainer).collect(Collectors.toList());
         SimpleFilter filter = new SimpleFilter();
         filter.addCondition(FieldKey.fromParts("Container"), containers, CompareType.IN);
-        filter.addCondition(FieldKey.fromString("Token"), token.toUpperCase());
-        TableSelector selector = new TableSelector(schema.getTableInfoEnrollmentToken(), filter, null);
-        return selector.exists();
+        filter.addCondition(FieldKey.fromString("Token"), tokenValue.toUpperCase());
+        List<EnrollmentToken> tokens = new TableSelector(MobileAppStudySchema.getInstance().getTableInfoEnrollmentToken(), filter, null)
+                .getArrayList(EnrollmentToken.class);
+        tokens.sort(Comparator.comparingInt(t -> containers.indexOf(t.getContainer())));
+        return tokens;
     }
 
     /**
@@ -224,28 +257,6 @@ public class MobileAppStudyManager
         return selector.exists();
     }
 
-    /**
-     * Determine if the study identified by the given short name has a participant with the given token
-     * @param shortName identifier for the study
-     * @param tokenValue identifier for the participant
-     * @return true or false depending on existence of participant in the given study
-     */
-    public boolean hasParticipant(@NotNull String shortName, @NotNull String tokenValue)
-    {
-        MobileAppStudySchema schema = MobileAppStudySchema.getInstance();
-        TableInfo participantTable = schema.getTableInfoParticipant();
-        TableInfo tokenTable = schema.getTableInfoEnrollmentToken();
-        TableInfo studyTable = schema.getTableInfoStudy();
-
-        SQLFragment sql = new SQLFragment("SELECT p.* from ").append(participantTable, "p");
-        sql.append(" JOIN ").append(tokenTable, "t").append(" ON t.participantId = p.rowId");
-        sql.append(" JOIN ").append(studyTable, "s").append(" ON p.studyId = s.rowId");
-        sql.append(" WHERE t.token = ? AND s.shortName = ?");
-
-        SqlSelector selector = new SqlSelector(schema.getSchema(), sql.getSQL(), tokenValue.toUpperCase(), shortName.toUpperCase());
-        return selector.exists();
-    }
-
     /**
      * Given a tokenValue that is associated with a study whose short name is provided, adds a new
      * study participant, generates the application token for that participant, and updates the
@@ -265,13 +276,16 @@ public class MobileAppStudyManager
             Participant participant = new Participant();
             List<MobileAppStudy> studies = getStudies(shortName);
             MobileAppStudy study;
+            EnrollmentToken eToken = null;
             if (tokenValue != null)
             {
-                Optional<MobileAppStudy> studyOpt = studies.stream().filter(s -> getEnrollmentToken(s.getContainer(), tokenValue) != null).findFirst();
-                if (studyOpt.isEmpty())
+                List<EnrollmentToken> tokens = getEnrollmentTokens(studies, tokenValue);
+                if (tokens.isEmpty())
                     throw new RuntimeValidationException("Invalid token '" + tokenValue + "' for study id '" + shortName + "'. Participant cannot be enrolled.");
-                else
-                    study = studyOpt.get();
+
+                eToken = tokens.get(0);
+                Container tokenContainer = eToken.getContainer();
+                study = studies.stream().filter(s -> s.getContainer().equals(tokenContainer)).findFirst().orElseThrow();
             }
             else if (studies.isEmpty())
                 throw new RuntimeValidationException("Invalid study id '" + shortName + "'.  Participant cannot be enrolled.");
@@ -285,9 +299,8 @@ public class MobileAppStudyManager
             participant.setStatus(ParticipantStatus.Enrolled);
             participant.setAllowDataSharing(allowDataSharing);
             participant = Table.insert(null, schema.getTableInfoParticipant(), participant);
-            if (tokenValue != null)
+            if (eToken != null)
             {
-                EnrollmentToken eToken = getEnrollmentToken(study.getContainer(), tokenValue);
                 eToken.setParticipantId(participant.getRowId());
                 Table.update(null, schema.getTableInfoEnrollmentToken(), eToken, eToken.getRowId());
             }
@@ -298,21 +311,6 @@ public class MobileAppStudyManager
         }
     }
 
-    /**
-     * Given a container and a token value, return the corresponding enrollment token object.
-     * @param container the container in which the token is valid
-     * @param tokenValue the value of the token
-     * @return object representation of the database record for this token.
-     */
-    private EnrollmentToken getEnrollmentToken(@NotNull Container container, @NotNull String tokenValue)
-    {
-        MobileAppStudySchema schema = MobileAppStudySchema.getInstance();
-        SimpleFilter filter = SimpleFilter.createContainerFilter(container);
-        filter.addCondition(FieldKey.fromString("Token"), tokenValue.toUpperCase());
-        TableSelector selector = new TableSelector(schema.getTableInfoEnrollmentToken(), filter, null);
-        return selector.getObject(EnrollmentToken.class);
-    }
-
     /**
      * Creates a new token batch with a given number of unique tokens
      * @param count number of unique tokens to generate
@@ -335,27 +333,44 @@ public class MobileAppStudyManager
             TableInfo batchTable = MobileAppStudySchema.getInstance().getTableInfoEnrollmentTokenBatch();
             batch = Table.insert(user, batchTable, batch);
 
-            // Generate the individual tokens, checking for duplicates
+            // Generate the individual tokens a chunk at a time, letting the unique index discard duplicates and
+            // topping up any shortfall with the next chunk
             TableInfo tokenTable = MobileAppStudySchema.getInstance().getTableInfoEnrollmentToken();
             MobileAppStudySchema schema = MobileAppStudySchema.getInstance();
             SqlExecutor executor = new SqlExecutor(schema.getSchema());
 
+            long start = System.currentTimeMillis();
             int numTokens = 0;
-            SQLFragment sql = new SQLFragment("INSERT INTO " + tokenTable);
-            sql.append(" (BatchId, Token, ParticipantId, Created, CreatedBy, Container) ");
-            sql.append(" SELECT ?, ?, NULL, ?, ?, ? ");
-            sql.append(" WHERE NOT EXISTS (SELECT * FROM ").append(tokenTable, "dup").append(" WHERE dup.Token = ?)");
+            int numCandidates = 0;
             while (numTokens < count)
             {
-                String token = generateEnrollmentToken();
-                numTokens += executor.execute(sql.getSQL(), batch.getRowId(), token, createdDate, user.getUserId(), container, token);
+                Set<String> tokens = new HashSet<>();
+                while (tokens.size() < Math.min(count - numTokens, TOKEN_INSERT_BATCH_SIZE))
+                    tokens.add(generateEnrollmentToken());
+                numCandidates += tokens.size();
+
+                SQLFragment sql = new SQLFragment("INSERT INTO ").append(tokenTable.getSelectName());
+                sql.append(" (BatchId, Token, ParticipantId, Created, CreatedBy, Container) VALUES ");
+                String separator = "";
+                for (String token : tokens)
+                {
+                    sql.append(separator).append("(?, ?, NULL, ?, ?, ?)");
+                    sql.add(batch.getRowId()).add(token).add(createdDate).add(user.getUserId()).add(container);
+                    separator = ", ";
+                }
+                sql.append(" ON CONFLICT (Token) DO NOTHING");
+                numTokens += executor.execute(sql);
             }
 
+            long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+            logger.info(String.format("Generated %1$s enrollment tokens for batch %2$s in %3$s ms (%4$s tokens/sec, %5$s duplicate candidates discarded)",
+                    numTokens, batch.getRowId(), elapsed, numTokens * 1000L / elapsed, numCandidates - numTokens));
+
             transaction.commit();
 
             ListDefinition participantProperties = ListService.get().getList(container, PARTICIPANT_PROPERTIES_LIST_NAME);
             if (participantProperties != null)
-                insertParticipantPropertiesEnrollmentTokens(container, user, participantProperties);
+                insertParticipantPropertiesEnrollmentTokens(container, user, participantProperties, batch.getRowId());
 
             return batch;
         }
@@ -377,8 +392,15 @@ public class MobileAppStudyManager
             ContainerUtil.purgeTable(schema.getTableInfoStudy(), c, null);
             ContainerUtil.purgeTable(schema.getTableInfoResponseMetadata(), c, null);
             ContainerUtil.purgeTable(schema.getTableInfoParticipantPropertyMetadata(), c, null);
+            ContainerUtil.purgeTable(schema.getTableInfoAppliedDesignVersion(), c, null);
+            ContainerUtil.purgeTable(schema.getTableInfoParticipantPurge(), c, null);
 
             transaction.commit();
+            StudyDesignRegistry.get().clear(c);
+            ForwardingCircuitBreaker.get().clear(c);
+            ParticipantDataDeleter.invalidate(c);
+            _appTokenCache.clear();
+            StudyRegistry.get().remove(c);
         }
         catch (Exception e)
         {
@@ -395,10 +417,7 @@ public class MobileAppStudyManager
     @NotNull
     public List<MobileAppStudy> getStudies(@NotNull String shortName)
     {
-        MobileAppStudySchema schema = MobileAppStudySchema.getInstance();
-        SimpleFilter filter = new SimpleFilter(FieldKey.fromString("ShortName"), shortName.toUpperCase());
-        TableSelector selector = new TableSelector(schema.getTableInfoStudy(), filter, null);
-        return selector.getArrayList(MobileAppStudy.class);
+        return StudyRegistry.get().getStudies(shortName);
     }
 
 
@@ -409,10 +428,7 @@ public class MobileAppStudyManager
      */
     public MobileAppStudy getStudy(@NotNull Container c)
     {
-        MobileAppStudySchema schema = MobileAppStudySchema.getInstance();
-        SimpleFilter filter = SimpleFilter.createContainerFilter(c);
-        TableSelector selector = new TableSelector(schema.getTableInfoStudy(), filter, null);
-        return selector.getObject(MobileAppStudy.class);
+        return StudyRegistry.get().getStudy(c);
     }
 
 
@@ -461,26 +477,7 @@ public class MobileAppStudyManager
      */
     public boolean studyExists(@NotNull String shortName)
     {
-        MobileAppStudySchema schema = MobileAppStudySchema.getInstance();
-
-        SimpleFilter filter = new SimpleFilter(FieldKey.fromString("ShortName"), shortName.toUpperCase());
-        TableSelector selector = new TableSelector(schema.getTableInfoStudy(), Collections.singleton("ShortName"), filter, null);
-        return selector.exists();
-    }
-
-    private List<Container> getContainers(@NotNull String shortName)
-    {
-        MobileAppStudySchema schema = MobileAppStudySchema.getInstance();
-
-        SimpleFilter filter = new SimpleFilter(FieldKey.fromString("ShortName"), shortName.toUpperCase());
-        TableSelector selector = new TableSelector(schema.getTableInfoStudy(), Collections.singleton("Container"), filter, null);
-        List<String> containerIds =  selector.getArrayList(String.class);
-        List<Container> containers = new ArrayList<>();
-        for (String id : containerIds)
-        {
-            containers.add(ContainerManager.getForId(id));
-        }
-        return containers;
+        return !getStudies(shortName).isEmpty();
     }
 
     /**
@@ -494,7 +491,7 @@ public class MobileAppStudyManager
     public boolean studyExistsAsSibling(@NotNull String shortName, @NotNull Container container)
     {
         Container parent = container.getParent();
-        for (Container otherContainer : getContainers(shortName))
+        for (Container otherContainer : getStudyContainers(shortName))
         {
             if (!otherContainer.equals(container) && otherContainer.getParent().equals(parent))
                 return true;
@@ -512,12 +509,7 @@ public class MobileAppStudyManager
      */
     public boolean studyExistsElsewhere(@NotNull String shortName, @NotNull Container container)
     {
-        MobileAppStudySchema schema = MobileAppStudySchema.getInstance();
-
-        SimpleFilter filter = new SimpleFilter(FieldKey.fromString("ShortName"), shortName.toUpperCase());
-        filter.addCondition(FieldKey.fromString("Container"), container, CompareType.NEQ);
-        TableSelector selector = new TableSelector(schema.getTableInfoStudy(), Collections.singleton("ShortName"), filter, null);
-        return selector.exists();
+        return getStudyContainers(shortName).stream().anyMatch(c -> !c.equals(container));
     }
 
     /**
@@ -534,7 +526,10 @@ public class MobileAppStudyManager
         study.setShortName(newShortName.toUpperCase());
         study.setCollectionEnabled(collectionEnabled);
 
-        return Table.update(user, studyTable, study, study.getRowId());
+        study = Table.update(user, studyTable, study, study.getRowId());
+        _appTokenCache.clear();
+        StudyRegistry.get().put(study);
+        return study;
     }
 
     /**
@@ -553,7 +548,9 @@ public class MobileAppStudyManager
         study.setShortName(shortName.toUpperCase());
         study.setCollectionEnabled(collectionEnabled);
         study.setContainer(container);
-        return Table.insert(user, studyTable, study);
+        study = Table.insert(user, studyTable, study);
+        StudyRegistry.get().put(study);
+        return study;
     }
 
     /**
@@ -573,12 +570,14 @@ public class MobileAppStudyManager
     }
 
     /**
-     * Add response processing job to queue
+     * Add response processing job to the study's queue
+     * @param container hosting the study the response belongs to
      * @param run Runnable to add to processing queue
+     * @return true if the job was queued, false if the study's queue is full
      */
-    void enqueueSurveyResponse(@NotNull Runnable run)
+    boolean enqueueSurveyResponse(@NotNull Container container, @NotNull Runnable run)
     {
-        _shredder.execute(run);
+        return ShredderScheduler.get().offer(container, run);
     }
 
     /**
@@ -588,14 +587,34 @@ public class MobileAppStudyManager
      */
     void shredSurveyResponse(@NotNull Integer rowId, @Nullable User user)
     {
-        SurveyResponse surveyResponse = getResponse(rowId);
-        MobileAppStudy study = MobileAppStudyManager.get().getStudyFromAppToken(surveyResponse.getAppToken());
+        if (claimResponse(rowId))
+        {
+            shredClaimedResponse(getResponse(rowId), rowId, user);
+        }
+        else
+        {
+            //Already handled as part of a batch or claimed by another server
+            logger.debug(String.format("Response %1$s is no longer pending, skipping", rowId));
+        }
+    }
 
+    /**
+     * Process a response this server has claimed
+     * @param surveyResponse the claimed response (can be null if it has since been deleted)
+     * @param rowId mobileappstudy.Response.RowId of the response
+     * @param user the user initiating the shredding request
+     */
+    private void shredClaimedResponse(@Nullable SurveyResponse surveyResponse, @NotNull Integer rowId, @Nullable User user)
+    {
         if (surveyResponse != null)
         {
+            MobileAppStudy study = MobileAppStudyManager.get().getStudyFromAppToken(surveyResponse.getAppToken());
+            boolean designApplied = false;
+
             try
             {
                 updateDesign(study, surveyResponse, user);
+                designApplied = true;
                 logger.info(String.format("Processing response %1$s in container %2$s", rowId, surveyResponse.getContainer().getName()));
 
                 this.store(surveyResponse, rowId, user);
@@ -605,12 +624,16 @@ public class MobileAppStudyManager
             }
             catch (InvalidDesignException e)
             {
+                // The design update rolled back, so the version was never recorded as applied
                 logger.error(String.format("Failed to update survey design: StudyId: %1$s, ActivityId: %2$s, version: %3$s", study.getShortName(),  surveyResponse.getActivityId(), surveyResponse.getSurveyVersion()), e);
                 this.updateProcessingStatus(user, rowId, ResponseStatus.ERROR, e.getMessage());
             }
             catch (Exception e)
             {
                 logger.error("Error processing response " + rowId + " in container " + surveyResponse.getContainer().getName(), e);
+                // Storing may have failed because the lists don't match the design, so check the design again next time
+                if (designApplied)
+                    StudyDesignRegistry.get().invalidateSurvey(surveyResponse.getContainer(), surveyResponse.getActivityId(), surveyResponse.getSurveyVersion());
                 this.updateProcessingStatus(user, rowId, ResponseStatus.ERROR, e instanceof NullPointerException ? "NullPointerException" : e.getMessage());
             }
         }
@@ -622,46 +645,157 @@ public class MobileAppStudyManager
 
 
     /**
-     * Provide common synchronization block for updating study's survey & properties lists
+     * Process all pending responses for a study activity version, a batch at a time
+     * @param key SurveyResponse identifying the container, activityId and surveyVersion of the responses to process
+     * @param user the user initiating the shredding request
+     */
+    void shredPendingResponses(@NotNull SurveyResponse key, @Nullable User user)
+    {
+        int lastRowId = 0;
+        List<SurveyResponse> batch;
+        do
+        {
+            batch = claimPendingResponses(key, lastRowId, Integer.MAX_VALUE, SHRED_BATCH_SIZE);
+            if (!batch.isEmpty())
+            {
+                lastRowId = batch.get(batch.size() - 1).getRowId();
+                shredSurveyResponses(batch, user);
+            }
+        }
+        while (batch.size() == SHRED_BATCH_SIZE);
+    }
+
+    /**
+     * Process a batch of responses for the same study activity version. The design is resolved once and the
+     * responses are stored and marked processed in a single transaction. If anything in the batch fails, the
+     * responses are processed individually so the failure is recorded against the response that caused it.
+     * The claims are renewed first, since the batch may have waited in the shredder queue since it was claimed.
+     * @param claimed responses to process, all sharing container, activityId and surveyVersion and claimed by this server
+     * @param user the user initiating the shredding request
+     */
+    void shredSurveyResponses(@NotNull List<SurveyResponse> claimed, @Nullable User user)
+    {
+        List<SurveyResponse> responses = claimed.isEmpty() ? claimed : renewShreddingClaims(claimed);
+        if (responses.isEmpty())
+            return;
+
+        SurveyResponse first = responses.get(0);
+        Container container = first.getContainer();
+        List<Integer> rowIds = responses.stream().map(SurveyResponse::getRowId).collect(Collectors.toList());
+        boolean designApplied = false;
+
+        try
+        {
+            updateDesign(getStudy(container), first, user);
+            designApplied = true;
+            logger.info(String.format("Processing %1$s responses for activity %2$s version %3$s in container %4$s", rowIds.size(), first.getActivityId(), first.getSurveyVersion(), container.getName()));
+
+            try (DbScope.Transaction transaction = MobileAppStudySchema.getInstance().getSchema().getScope().ensureTransaction())
+            {
+                for (SurveyResponse response : responses)
+                    this.store(response, response.getRowId(), user);
+                this.updateProcessingStatus(user, rowIds, ResponseStatus.PROCESSED, null);
+
+                transaction.commit();
+            }
+
+            logger.info(String.format("Processed %1$s responses in container %2$s", rowIds.size(), container.getName()));
+            enqueueForwardingJob(user, container);
+        }
+        catch (Exception e)
+        {
+            logger.warn(String.format("Unable to process batch of %1$s responses in container %2$s, processing individually", rowIds.size(), container.getName()), e);
+            // Storing may have failed because the lists don't match the design, so the first response checks it again
+            if (designApplied)
+                StudyDesignRegistry.get().invalidateSurvey(container, first.getActivityId(), first.getSurveyVersion());
+            responses.forEach(response -> shredClaimedResponse(response, response.getRowId(), user));
+        }
+    }
+
+    /**
+     * Apply the study's participant properties and survey designs. Designs that are already known to be applied are
+     * skipped without locking, otherwise updates are synchronized per study so different studies don't block each other.
      * @param study study to update
      * @param surveyResponse (can be null) if provided use to update activity's survey lists
      * @param user executing response (can be null)
      * @throws Exception
      */
-    private synchronized void updateDesign(@Nullable MobileAppStudy study, @Nullable SurveyResponse surveyResponse, @Nullable User user) throws Exception
+    private void updateDesign(@Nullable MobileAppStudy study, @Nullable SurveyResponse surveyResponse, @Nullable User user) throws Exception
+    {
+        updateDesign(study, surveyResponse, user, false);
+    }
+
+    /**
+     * @param refreshParticipantProperties if true, check the participant properties design even if it was checked recently
+     */
+    private void updateDesign(@Nullable MobileAppStudy study, @Nullable SurveyResponse surveyResponse, @Nullable User user, boolean refreshParticipantProperties) throws Exception
     {
-        try (DbScope.Transaction transaction = MobileAppStudySchema.getInstance().getSchema().getScope().ensureTransaction())
+        // e.g. the study was deleted, or the response's container no longer hosts one
+        if (study == null)
+            throw new IllegalStateException(surveyResponse == null ? "Study not found" :
+                    String.format("Study not found for activity %1$s version %2$s in container %3$s", surveyResponse.getActivityId(), surveyResponse.getSurveyVersion(), surveyResponse.getContainer().getName()));
+
+        Container container = study.getContainer();
+        StudyDesignRegistry registry = StudyDesignRegistry.get();
+        if (!refreshParticipantProperties && !registry.isParticipantPropertiesCheckDue(container)
+                && (surveyResponse == null || registry.isSurveyApplied(container, surveyResponse.getActivityId(), surveyResponse.getSurveyVersion())))
+            return;
+
+        synchronized (registry.getLock(container))
         {
-            updateParticipantProperties(study, user);
+            try (DbScope.Transaction transaction = MobileAppStudySchema.getInstance().getSchema().getScope().ensureTransaction())
+            {
+                if (refreshParticipantProperties || registry.isParticipantPropertiesCheckDue(container))
+                {
+                    updateParticipantProperties(study, user);
+                    transaction.addCommitTask(() -> registry.setParticipantPropertiesChecked(container), DbScope.CommitTaskOption.POSTCOMMIT);
+                }
 
-            if (surveyResponse != null)
-                updateSurveys(surveyResponse, user);
+                if (surveyResponse != null && !registry.isSurveyApplied(container, surveyResponse.getActivityId(), surveyResponse.getSurveyVersion()))
+                {
+                    updateSurveys(surveyResponse, user);
+                    transaction.addCommitTask(() -> registry.setSurveyApplied(container, surveyResponse.getActivityId(), surveyResponse.getSurveyVersion()), DbScope.CommitTaskOption.POSTCOMMIT);
+                }
 
-            transaction.commit();
+                transaction.commit();
+            }
         }
     }
 
     private void updateParticipantProperties(MobileAppStudy study, User user) throws Exception
     {
         new ParticipantPropertiesProcessor(logger).updateParticipantPropertiesDesign(study, user);
+        ParticipantDataDeleter.invalidate(study.getContainer());
     }
 
     /**
      * Check if survey was previously seen, if not retrieve schema and apply
      *
-     * note: assumes caller has synchronized access and opened transaction
+     * note: assumes caller holds the study's design lock and opened transaction
      * @param surveyResponse that was sent, includes SurveyId and Version
      * @param user executing response (can be null)
      * @throws InvalidDesignException If design schema cannot be applied
      */
     private void updateSurveys(@NotNull SurveyResponse surveyResponse, @Nullable User user) throws Exception
     {
-        //If we've seen this activity metadata before continue
-        if (isKnownVersion(surveyResponse.getAppToken(), surveyResponse.getActivityId(), surveyResponse.getSurveyVersion(), surveyResponse.getRowId()))
+        StudyDesignRegistry registry = StudyDesignRegistry.get();
+        Container container = surveyResponse.getContainer();
+        String activityId = surveyResponse.getActivityId();
+        String version = surveyResponse.getSurveyVersion();
+
+        //If this activity metadata was applied elsewhere continue
+        if (registry.isSurveyRecorded(container, activityId, version))
             return;
 
-        //Else retrieve and apply any changes
-        new SurveyDesignProcessor(logger).updateSurveyDesign(surveyResponse, user);
+        //Else retrieve and apply any changes, unless responses show it was applied before versions were recorded. A
+        //version whose design was invalidated is always applied again.
+        if (registry.isSurveyInvalidated(container, activityId, version) || !isKnownVersion(container, activityId, version, surveyResponse.getRowId()))
+        {
+            new SurveyDesignProcessor(logger).updateSurveyDesign(surveyResponse, user);
+            ParticipantDataDeleter.invalidate(container);
+        }
+
+        registry.recordSurveyApplied(container, activityId, version);
     }
 
     /**
@@ -692,6 +826,183 @@ public class MobileAppStudyManager
                 .getCollection(Integer.class);
     }
 
+    /**
+     * Get the distinct container, activity, and version combinations of the pending responses, including those whose
+     * shredding claim has expired
+     * @param rowIds (Optional) limit to these responses
+     * @return Collection of SurveyResponse objects with only Container, ActivityId, and SurveyVersion populated
+     */
+    Collection<SurveyResponse> getPendingResponseBatchKeys(@Nullable Collection<Integer> rowIds)
+    {
+        MobileAppStudySchema schema = MobileAppStudySchema.getInstance();
+        SQLFragment sql = new SQLFragment("SELECT DISTINCT Container, ActivityId, SurveyVersion FROM ")
+                .append(schema.getTableInfoResponse(), "r")
+                .append(" WHERE ").append(getShreddableCondition());
+        if (rowIds != null)
+        {
+            sql.append(" AND RowId ");
+            schema.getSqlDialect().appendInClauseSql(sql, rowIds);
+        }
+
+        return new SqlSelector(schema.getSchema(), sql).getCollection(SurveyResponse.class);
+    }
+
+    /**
+     * Claim the next batch of pending responses for a study activity version, so no other server shreds them. Rows
+     * locked by another server's claim are skipped, and claims older than the lease are taken over.
+     * @param key SurveyResponse identifying the container, activityId and surveyVersion
+     * @param afterRowId only claim responses with a greater RowId
+     * @param throughRowId only claim responses with this RowId or less
+     * @param maxRows size of the batch
+     * @return List of the claimed SurveyResponse objects in RowId order
+     */
+    List<SurveyResponse> claimPendingResponses(@NotNull SurveyResponse key, int afterRowId, int throughRowId, int maxRows)
+    {
+        MobileAppStudySchema schema = MobileAppStudySchema.getInstance();
+        TableInfo responseTable = schema.getTableInfoResponse();
+
+        // ClaimedAt starts the lease, and identifies this claim when it is renewed
+        SQLFragment sql = new SQLFragment("UPDATE ").append(responseTable.getSelectName())
+                .append(" SET Status = ?, ClaimedAt = ?").add(ResponseStatus.SHREDDING.getPkId()).add(new Date())
+                .append(" WHERE RowId IN (SELECT RowId FROM ").append(responseTable.getSelectName())
+                .append(" WHERE Container = ? AND ActivityId = ? AND SurveyVersion = ?")
+                .add(key.getContainer()).add(key.getActivityId()).add(key.getSurveyVersion())
+                .append(" AND RowId > ? AND RowId <= ?").add(afterRowId).add(throughRowId)
+                .append(" AND ").append(getShreddableCondition())
+                .append(" ORDER BY RowId LIMIT ?").add(maxRows)
+                .append(" FOR UPDATE SKIP LOCKED) RETURNING RowId");
+        List<Integer> rowIds = new SqlSelector(schema.getSchema(), sql).getArrayList(Integer.class);
+        if (rowIds.isEmpty())
+            return Collections.emptyList();
+
+        SimpleFilter filter = new SimpleFilter();
+        filter.addInClause(FieldKey.fromParts("RowId"), rowIds);
+        return new TableSelector(responseTable, filter, new Sort("RowId")).getArrayList(SurveyResponse.class);
+    }
+
+    /**
+     * Claim a single pending response, so no other server shreds it
+     * @param rowId mobileappstudy.Response.RowId to claim
+     * @return true if the response was claimed, false if it is no longer pending or another server holds the claim
+     */
+    private boolean claimResponse(@NotNull Integer rowId)
+    {
+        MobileAppStudySchema schema = MobileAppStudySchema.getInstance();
+        SQLFragment sql = new SQLFragment("UPDATE ").append(schema.getTableInfoResponse().getSelectName())
+                .append(" SET Status = ?, ClaimedAt = ?").add(ResponseStatus.SHREDDING.getPkId()).add(new Date())
+                .append(" WHERE RowId = ? AND ").add(rowId).append(getShreddableCondition());
+
+        return new SqlExecutor(schema.getSchema()).execute(sql) > 0;
+    }
+
+    /**
+     * Renew this server's claim on responses it is about to shred, so a chunk that waited in the queue close to the
+     * end of its lease isn't taken over while it is being shredded. A claim is only renewed if it still has the
+     * ClaimedAt it was made with; responses whose claim expired and was taken over by another server are dropped.
+     * @param responses claimed by this server, as returned by claimPendingResponses
+     * @return the responses whose claim was renewed, in the given order
+     */
+    List<SurveyResponse> renewShreddingClaims(@NotNull List<SurveyResponse> responses)
+    {
+        MobileAppStudySchema schema = MobileAppStudySchema.getInstance();
+        TableInfo responseTable = schema.getTableInfoResponse();
+        Date renewed = new Date();
+        Set<Integer> held = new HashSet<>();
+
+        Map<Date, List<Integer>> rowIdsByClaim = responses.stream()
+                .filter(response -> response.getClaimedAt() != null)
+                .collect(Collectors.groupingBy(SurveyResponse::getClaimedAt, Collectors.mapping(SurveyResponse::getRowId, Collectors.toList())));
+        for (Map.Entry<Date, List<Integer>> claim : rowIdsByClaim.entrySet())
+        {
+            SQLFragment sql = new SQLFragment("UPDATE ").append(responseTable.getSelectName())
+                    .append(" SET ClaimedAt = ?").add(renewed)
+                    .append(" WHERE Status = ? AND ClaimedAt = ?").add(ResponseStatus.SHREDDING.getPkId()).add(claim.getKey())
+                    .append(" AND RowId ");
+            schema.getSqlDialect().appendInClauseSql(sql, claim.getValue());
+            sql.append(" RETURNING RowId");
+            held.addAll(new SqlSelector(schema.getSchema(), sql).getArrayList(Integer.class));
+        }
+
+        List<SurveyResponse> renewedResponses = new ArrayList<>();
+        for (SurveyResponse response : responses)
+        {
+            if (held.contains(response.getRowId()))
+            {
+                response.setClaimedAt(renewed);
+                renewedResponses.add(response);
+            }
+            else
+            {
+                logger.debug(String.format("Claim on response %1$s was taken over, skipping", response.getRowId()));
+            }
+        }
+        return renewedResponses;
+    }
+
+    /**
+     * @return condition matching responses that are pending, or whose shredding claim has expired
+     */
+    private SQLFragment getShreddableCondition()
+    {
+        return new SQLFragment("(Status = ? OR (Status = ? AND ClaimedAt < ?))")
+                .add(ResponseStatus.PENDING.getPkId())
+                .add(ResponseStatus.SHREDDING.getPkId())
+                .add(new Date(System.currentTimeMillis() - SHREDDING_CLAIM_LEASE_MS));
+    }
+
+    /**
+     * Stop a withdrawn participant's responses from being shredded before their data is purged. Pending responses,
+     * and those whose shredding claim has expired, are marked as errors so no server will claim them. Responses a
+     * server is shredding now are left to finish.
+     * @param participantId RowId of the participant
+     * @return the number of the participant's responses still being shredded
+     */
+    int cancelShredding(int participantId)
+    {
+        MobileAppStudySchema schema = MobileAppStudySchema.getInstance();
+        TableInfo responseTable = schema.getTableInfoResponse();
+
+        SQLFragment sql = new SQLFragment("UPDATE ").append(responseTable.getSelectName())
+                .append(" SET Status = ?, ErrorMessage = ?").add(ResponseStatus.ERROR.getPkId()).add("Participant withdrawn, response not processed")
+                .append(" WHERE ParticipantId = ? AND ").add(participantId).append(getShreddableCondition());
+        new SqlExecutor(schema.getSchema()).execute(sql);
+
+        SimpleFilter filter = new SimpleFilter(FieldKey.fromParts("ParticipantId"), participantId);
+        filter.addCondition(FieldKey.fromParts("Status"), ResponseStatus.SHREDDING.getPkId());
+        return (int) new TableSelector(responseTable, filter, null).getRowCount();
+    }
+
+    /**
+     * @param createdBefore only consider responses submitted before this time
+     * @return the greatest RowId of the pending responses or expired claims, or null if there are none
+     */
+    @Nullable
+    Integer getMaxPendingRowId(@NotNull Date createdBefore)
+    {
+        MobileAppStudySchema schema = MobileAppStudySchema.getInstance();
+        SQLFragment sql = new SQLFragment("SELECT MAX(RowId) FROM ")
+                .append(schema.getTableInfoResponse(), "r")
+                .append(" WHERE Created < ?").add(createdBefore)
+                .append(" AND ").append(getShreddableCondition());
+
+        return new SqlSelector(schema.getSchema(), sql).getObject(Integer.class);
+    }
+
+    /**
+     * @param throughRowId only count responses with this RowId or less
+     * @return the number of pending responses and expired claims
+     */
+    long countPendingResponses(int throughRowId)
+    {
+        MobileAppStudySchema schema = MobileAppStudySchema.getInstance();
+        SQLFragment sql = new SQLFragment("SELECT COUNT(*) FROM ")
+                .append(schema.getTableInfoResponse(), "r")
+                .append(" WHERE RowId <= ?").add(throughRowId)
+                .append(" AND ").append(getShreddableCondition());
+
+        return new SqlSelector(schema.getSchema(), sql).getObject(Long.class);
+    }
+
     /**
      * Get the set of responses that are in the specified state
      * @param status to query
@@ -710,6 +1021,25 @@ public class MobileAppStudyManager
                 .getCollection(SurveyResponse.class);
     }
 
+    /**
+     * Get a page of the responses that are in the specified state, in RowId order
+     * @param status to query
+     * @param container hosting study to be queried
+     * @param afterRowId only return responses with a greater RowId, i.e., the last RowId of the previous page
+     * @param maxRows size of the page
+     * @return List of SurveyResponse objects
+     */
+    public List<SurveyResponse> getResponsesByStatus(ResponseStatus status, @NotNull Container container, int afterRowId, int maxRows)
+    {
+        SimpleFilter filter = SimpleFilter.createContainerFilter(container);
+        filter.addCondition(FieldKey.fromParts("Status"), status.getPkId());
+        filter.addCondition(FieldKey.fromParts("RowId"), afterRowId, CompareType.GT);
+
+        return new TableSelector(MobileAppStudySchema.getInstance().getTableInfoResponse(), filter, new Sort("RowId"))
+                .setMaxRows(maxRows)
+                .getArrayList(SurveyResponse.class);
+    }
+
 
 
     /**
@@ -749,6 +1079,44 @@ public class MobileAppStudyManager
      */
     @Nullable
     public Participant getParticipantFromAppToken(String appToken)
+    {
+        AppTokenEntry entry = getAppTokenEntry(appToken);
+        return entry == null ? null : entry.getParticipant();
+    }
+
+    /**
+     * Resolve an appToken to its participant and study, using the cache if possible. Only found participants are
+     * cached.
+     * @param appToken to lookup
+     * @return the cached entry, or null if there is no participant for the appToken
+     */
+    @Nullable
+    private AppTokenEntry getAppTokenEntry(String appToken)
+    {
+        if (appToken == null)
+            return null;
+
+        AppTokenEntry entry = _appTokenCache.get(appToken);
+        if (entry == null)
+        {
+            Participant participant = selectParticipantFromAppToken(appToken);
+            if (participant == null)
+                return null;
+
+            entry = new AppTokenEntry(participant, getStudyFromParticipant(participant));
+            _appTokenCache.put(appToken, entry);
+        }
+
+        return entry;
+    }
+
+    /**
+     * Query for the participant with an appToken, bypassing the cache
+     * @param appToken to lookup
+     * @return Participant if found, null if not
+     */
+    @Nullable
+    private Participant selectParticipantFromAppToken(String appToken)
     {
         MobileAppStudySchema schema = MobileAppStudySchema.getInstance();
         FieldKey pKey = FieldKey.fromParts("apptoken");
@@ -757,6 +1125,32 @@ public class MobileAppStudyManager
         return new TableSelector(schema.getTableInfoParticipant(), filter, null).getObject(Participant.class);
     }
 
+    /**
+     * Participant and study resolved from an appToken. Entries are shared through the cache, so they hold their own
+     * copies and hand out copies, leaving callers free to modify what they get.
+     */
+    private static class AppTokenEntry
+    {
+        private final Participant _participant;
+        private final MobileAppStudy _study;
+
+        private AppTokenEntry(@NotNull Participant participant, @Nullable MobileAppStudy study)
+        {
+            _participant = new Participant(participant);
+            _study = study == null ? null : new MobileAppStudy(study);
+        }
+
+        private Participant getParticipant()
+        {
+            return new Participant(_participant);
+        }
+
+        private MobileAppStudy getStudy()
+        {
+            return _study == null ? null : new MobileAppStudy(_study);
+        }
+    }
+
     /**
      * Insert new row into the mobileappstudy.Response table
      * @param resp to insert
@@ -777,6 +1171,16 @@ public class MobileAppStudyManager
         return Table.insert(null, responseTable, resp);
     }
 
+    /**
+     * Remove a row from the mobileappstudy.Response table. Used when a response was stored but could not be queued
+     * for processing, so the client can resubmit it.
+     * @param rowId of the response to remove
+     */
+    void deleteResponse(@NotNull Integer rowId)
+    {
+        Table.delete(MobileAppStudySchema.getInstance().getTableInfoResponse(), rowId);
+    }
+
     /**
      * Retrieve the study associated with an appToken via the participant
      * @param appToken to lookup
@@ -785,10 +1189,8 @@ public class MobileAppStudyManager
     @Nullable
     MobileAppStudy getStudyFromAppToken(String appToken)
     {
-        Participant participant = getParticipantFromAppToken(appToken);
-        if (null == participant)
-            return null;
-        return getStudyFromParticipant(participant);
+        AppTokenEntry entry = getAppTokenEntry(appToken);
+        return entry == null ? null : entry.getStudy();
     }
 
     /**
@@ -799,8 +1201,7 @@ public class MobileAppStudyManager
     @Nullable
     MobileAppStudy getStudyFromParticipant(@NotNull Participant participant)
     {
-        SimpleFilter filter = new SimpleFilter(FieldKey.fromParts("rowId"), participant.getStudyId());
-        return new TableSelector(MobileAppStudySchema.getInstance().getTableInfoStudy(),  filter, null).getObject(MobileAppStudy.class);
+        return participant.getStudyId() == null ? null : StudyRegistry.get().getStudy(participant.getStudyId());
     }
 
     public int reprocessResponses(User user, @NotNull Set<Integer> listIds)
@@ -810,11 +1211,14 @@ public class MobileAppStudyManager
         Collection<SurveyResponse> responses = new TableSelector(
                 MobileAppStudySchema.getInstance().getTableInfoResponse(), filter, null).getCollection(SurveyResponse.class);
 
-        responses.forEach(response ->
-        {
-            updateProcessingStatus(user, response.getRowId(), ResponseStatus.PENDING);
-            enqueueSurveyResponse(() -> shredSurveyResponse(response.getRowId(), user));
-        });
+        if (responses.isEmpty())
+            return 0;
+
+        List<Integer> rowIds = responses.stream().map(SurveyResponse::getRowId).collect(Collectors.toList());
+        updateProcessingStatus(user, rowIds, ResponseStatus.PENDING, null);
+        getPendingResponseBatchKeys(rowIds).forEach(key ->
+            ShredderScheduler.get().submit(key.getContainer(), () -> shredPendingResponses(key, user))
+        );
 
         return responses.size();
     }
@@ -826,22 +1230,41 @@ public class MobileAppStudyManager
 
     public void updateProcessingStatus(@Nullable User user, @NotNull Integer rowId, @NotNull ResponseStatus newStatus, @Nullable String errorMessage)
     {
+        updateProcessingStatus(user, Collections.singleton(rowId), newStatus, errorMessage);
+    }
+
+    /**
+     * Set the status of a set of responses with a single update statement
+     * @param user making the change (can be null)
+     * @param rowIds of the responses to update
+     * @param newStatus to set
+     * @param errorMessage (can be null) error to record against the responses
+     */
+    public void updateProcessingStatus(@Nullable User user, @NotNull Collection<Integer> rowIds, @NotNull ResponseStatus newStatus, @Nullable String errorMessage)
+    {
+        if (rowIds.isEmpty())
+            return;
+
         MobileAppStudySchema schema = MobileAppStudySchema.getInstance();
         TableInfo responseTable = schema.getTableInfoResponse();
-        SurveyResponse response = new TableSelector(responseTable).getObject(rowId, SurveyResponse.class);
 
-        response.setStatus(newStatus);
+        SQLFragment sql = new SQLFragment("UPDATE ").append(responseTable.getSelectName())
+                .append(" SET Status = ?").add(newStatus.getPkId());
         if (errorMessage != null)
-            response.setErrorMessage(errorMessage.length() > ERROR_MESSAGE_MAX_SIZE ? errorMessage.substring(0, ERROR_MESSAGE_MAX_SIZE) + TRUNCATED_MESSAGE_SUFFIX : errorMessage);
+            sql.append(", ErrorMessage = ?").add(errorMessage.length() > ERROR_MESSAGE_MAX_SIZE ? errorMessage.substring(0, ERROR_MESSAGE_MAX_SIZE) + TRUNCATED_MESSAGE_SUFFIX : errorMessage);
         else
-            response.setErrorMessage(null);
+            sql.append(", ErrorMessage = NULL");
+
         // we currently have only start and end statuses, so we can safely set the processed and processedBy
         // fields at this point.
-        response.setProcessed(new Date());
+        sql.append(", Processed = ?").add(new Date());
         if (user != null && !user.isGuest())
-            response.setProcessedBy(user);
+            sql.append(", ProcessedBy = ?").add(user.getUserId());
+
+        sql.append(" WHERE RowId ");
+        schema.getSqlDialect().appendInClauseSql(sql, rowIds);
 
-        Table.update(user, responseTable, response, response.getRowId());
+        new SqlExecutor(schema.getSchema()).execute(sql);
     }
 
     public Set<Integer> getNonErrorResponses(Set<Integer> listIds)
@@ -884,7 +1307,9 @@ public class MobileAppStudyManager
     }
 
     /**
-     * Store a SurveyResult in a given list and then recursively store its multi-valued results in their respective lists
+     * Store a SurveyResult in a given list and then store its multi-valued results in their respective lists. The
+     * lists are stored a level at a time so that all the rows bound for a list are inserted together once the rows
+     * of their parent list have keys, and the response metadata for every result is inserted together at the end.
      *
      * @param response the response whose results are being stored
      * @param listName name of the list to store data in
@@ -908,14 +1333,39 @@ public class MobileAppStudyManager
         data.put("endTime", response.getEndTime());
         data.put("responseId", responseBlobId);
 
-        Map<String, Object> row = storeListResults(null, listName, results, data, errors, container, user, participantId);
-        if (!row.isEmpty())
+        PendingListRows surveyRows = new PendingListRows(listName, null);
+        surveyRows.add(data, results);
+
+        List<SurveyResult> metadata = new ArrayList<>();
+        Integer activityId = null;
+
+        Map<String, PendingListRows> level = Collections.singletonMap(listName, surveyRows);
+        while (!level.isEmpty())
         {
-            Integer activityId = (Integer) row.get("Key");
-            Pair<String, Integer> rowKey = new Pair<>(listName + "Id", activityId);
-            List<SurveyResult> multiValuedResults = getMultiValuedResults(listName, results);
-            storeMultiValuedResults(multiValuedResults, activityId, rowKey, errors, container, user, participantId);
+            Map<String, PendingListRows> nextLevel = new LinkedHashMap<>();
+            for (PendingListRows pending : level.values())
+            {
+                List<Map<String, Object>> rows = storeListResults(pending, activityId, errors, metadata, container, user, participantId);
+                if (!errors.isEmpty())
+                    return;
+
+                if (pending.isChoiceList())
+                    continue;
+
+                for (int i = 0; i < rows.size(); i++)
+                {
+                    Integer rowKey = (Integer) rows.get(i).get("Key");
+                    if (activityId == null) // the survey list row is the activity all the other rows and metadata belong to
+                        activityId = rowKey;
+
+                    List<SurveyResult> multiValuedResults = getMultiValuedResults(pending.getListName(), pending.getResults().get(i));
+                    collectMultiValuedResults(multiValuedResults, activityId, new Pair<>(pending.getListName() + "Id", rowKey), nextLevel, metadata, container, participantId);
+                }
+            }
+            level = nextLevel;
         }
+
+        storeResponseMetadata(metadata, container, user);
     }
 
     /**
@@ -1016,153 +1466,128 @@ public class MobileAppStudyManager
     }
 
     /**
-     * Inserts a row for the given list table to add the data provided
+     * Inserts rows into the given list table with a single call to its update service
      * @param table the list table in which data is to be stored
-     * @param data the collection of data elements for the new row
+     * @param rows the data for the new rows
      * @param container the container in which the list (table) lives
      * @param user the user inserting data into the list
-     * @return the newly created row
-     * @throws Exception if the table has no update service or there is any other problem inserting the new row
+     * @return the newly created rows, in the same order as the given data
+     * @throws Exception if the table has no update service or there is any other problem inserting the new rows
      */
-    private Map<String, Object> storeListData(@NotNull TableInfo table, @NotNull Map<String, Object> data, @NotNull Container container, @Nullable User user) throws Exception
+    private List<Map<String, Object>> storeListData(@NotNull TableInfo table, @NotNull List<Map<String, Object>> rows, @NotNull Container container, @Nullable User user) throws Exception
     {
-        // Add an entry to the survey list and get the id.
-        BatchValidationException exception = new BatchValidationException();
-
+        // Add the entries to the list and get their ids.
         if (table.getUpdateService() == null)
             throw new IllegalStateException("Unable to get update service for table " + table.getName());
-        List<Map<String, Object>> rows = table.getUpdateService().insertRows(user, container, Collections.singletonList(data), exception, null, null);
+
+        // rows imported together need the same set of columns, so rows are grouped by the columns they supply
+        // (e.g., only some choices have other text) rather than padded with nulls that would override column defaults
+        Map<Set<String>, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < rows.size(); i++)
+            groups.computeIfAbsent(rows.get(i).keySet(), k -> new ArrayList<>()).add(i);
+
+        if (groups.size() == 1)
+            return insertListRows(table, rows, container, user);
+
+        List<Map<String, Object>> inserted = new ArrayList<>(Collections.nCopies(rows.size(), null));
+        for (List<Integer> indexes : groups.values())
+        {
+            List<Map<String, Object>> groupRows = indexes.stream().map(rows::get).collect(Collectors.toList());
+            List<Map<String, Object>> groupInserted = insertListRows(table, groupRows, container, user);
+            for (int i = 0; i < indexes.size(); i++)
+                inserted.set(indexes.get(i), groupInserted.get(i));
+        }
+        return inserted;
+    }
+
+    private List<Map<String, Object>> insertListRows(@NotNull TableInfo table, @NotNull List<Map<String, Object>> rows, @NotNull Container container, @Nullable User user) throws Exception
+    {
+        BatchValidationException exception = new BatchValidationException();
+        List<Map<String, Object>> inserted = table.getUpdateService().insertRows(user, container, rows, exception, null, null);
         if (exception.hasErrors())
             throw exception;
         else
-            return rows.get(0);
+            return inserted;
     }
 
     /**
-     * Stores a set of SurveyResult objects in a given list. For each given SurveyResult that is single-valued, store it
-     * in the column with the corresponding name.
+     * Stores the pending rows for a list. For each row's SurveyResults that are single-valued, store them in the
+     * columns with the corresponding names. Choice lists hold a single selected value per row, which has already been set.
      *
-     * @param activityId identifier of the survey
-     * @param listName name of the list in which the responses should be stored
-     * @param results the superset of results to be stored.  This may contain multi-valued results as well, but these
-     *                will not be handled in this method
-     * @param data contains the initial set of data to be stored in the row (primarily the parent key field).
+     * @param pending the rows to be stored in the list, and the results they were built from
+     * @param activityId identifier of the survey, null when storing the survey's own list
      * @param errors the set of errors accumulated thus far, which will be appended with errors encountered for storing these results
+     * @param metadata the response metadata collected thus far, which will be appended with the metadata for these results
      * @param container the container in which the list lives
      * @param user the user to do the insert
      * @param participantId of respondent
-     * @return the newly created list row
+     * @return the newly created list rows
      * @throws Exception if there is a problem finding or updating the appropriate lists
      */
-    private Map<String, Object> storeListResults(@Nullable Integer activityId, @NotNull String listName, @NotNull List<SurveyResult> results, @NotNull Map<String, Object> data, @NotNull List<String> errors, @NotNull Container container, @NotNull User user, @NotNull Integer participantId) throws Exception
+    private List<Map<String, Object>> storeListResults(@NotNull PendingListRows pending, @Nullable Integer activityId, @NotNull List<String> errors, @NotNull List<SurveyResult> metadata, @NotNull Container container, @NotNull User user, @NotNull Integer participantId) throws Exception
     {
-        TableInfo surveyTable = getResultTable(listName, container, user);
+        TableInfo surveyTable = getResultTable(pending.getListName(), container, user);
         if (surveyTable.getUpdateService() == null)
         {
-            errors.add("No update service available for the given survey table: " + listName);
-            return Collections.emptyMap();
+            errors.add("No update service available for the given survey table: " + pending.getListName());
+            return Collections.emptyList();
+        }
+
+        if (pending.isChoiceList())
+        {
+            validateListColumn(surveyTable, pending.getChoiceKey(), SurveyStep.StepResultType.Text, errors);
+            if (!errors.isEmpty() || pending.getRows().isEmpty())
+                return Collections.emptyList();
+
+            return storeListData(surveyTable, pending.getRows(), container, user);
         }
 
-        // find all the single-value results, check if they are in the list, check the type, and add them to the data map if everything is good
-        List<SurveyResult> singleValuedResults = getSingleValuedResults(surveyTable, results, errors);
-        if (!errors.isEmpty())
-            return Collections.emptyMap();
+        // find all the single-value results, check if they are in the list, check the type, and add them to the data maps if everything is good
+        List<List<SurveyResult>> singleValuedResultSets = new ArrayList<>();
+        for (int i = 0; i < pending.getRows().size(); i++)
+        {
+            List<SurveyResult> singleValuedResults = getSingleValuedResults(surveyTable, pending.getResults().get(i), errors);
+            if (!errors.isEmpty())
+                return Collections.emptyList();
 
-        for (SurveyResult result: singleValuedResults)
-            data.put(result.getKey(), result.getParsedValue());
+            Map<String, Object> data = pending.getRows().get(i);
+            for (SurveyResult result : singleValuedResults)
+                data.put(result.getKey(), result.getParsedValue());
+
+            data.put("participantId", participantId);
+            singleValuedResultSets.add(singleValuedResults);
+        }
 
-        data.put("participantId", participantId);
-        Map<String, Object> row = storeListData(surveyTable, data, container, user);
-        if (activityId == null)
-            activityId = (Integer) row.get("Key");
+        List<Map<String, Object>> rows = storeListData(surveyTable, pending.getRows(), container, user);
 
-        // Add a resultMetadata row for each of the individual rows using the given activityId
-        storeResponseMetadata(singleValuedResults, activityId, container, user, participantId);
+        // Add a resultMetadata row for each of the individual results using the given activityId
+        for (int i = 0; i < rows.size(); i++)
+            addResponseMetadata(singleValuedResultSets.get(i), activityId == null ? (Integer) rows.get(i).get("Key") : activityId, container, participantId, metadata);
 
-        return row;
+        return rows;
     }
 
     /**
-     * Recursively stores a set of multi-valued results
+     * Sorts a set of multi-valued results into the rows to be stored in their respective lists
      * @param results the set of multi-valued results to be stored
      * @param activityId identifier for the survey being processed
      * @param parentKey the key for the list that these multi-valued results are associated with
-     * @param errors the collection of validation errors encountered thus far
+     * @param pending the rows to be stored for the next level of lists, by list name
+     * @param metadata the response metadata collected thus far
      * @param container container for the lists
-     * @param user user to do the inserts
      * @param participantId of respondent
-     * @throws Exception if there is a problem finding or updating the appropriate lists
      */
-    private void storeMultiValuedResults(@NotNull List<SurveyResult> results, @NotNull Integer activityId, @NotNull Pair<String, Integer> parentKey, @NotNull List<String> errors, @NotNull Container container, @NotNull User user, @NotNull Integer participantId) throws Exception
+    private void collectMultiValuedResults(@NotNull List<SurveyResult> results, @NotNull Integer activityId, @NotNull Pair<String, Integer> parentKey, @NotNull Map<String, PendingListRows> pending, @NotNull List<SurveyResult> metadata, @NotNull Container container, @NotNull Integer participantId)
     {
         for (SurveyResult result : results)
         {
-            if (result.getStepResultType() == SurveyStep.StepResultType.TextChoice)
+            if (result.getSkipped()) // store only metadata if the response was skipped
             {
-                storeResultChoices(result, activityId, parentKey, errors, container, user, participantId);
+                addResponseMetadata(Collections.singletonList(result), activityId, container, participantId, metadata);
             }
-            else // result is of type GROUPED_RESULT
-            {
-                if (result.getSkipped())
-                    storeResponseMetadata(Collections.singletonList(result), activityId, container, user, participantId);
-                else
-                {
-                    // two scenarios, groupedResult is an array of SurveyResult objects or is an array of an array of SurveyResult objects
-                    List<List<SurveyResult>> groupedResultList = new ArrayList<>();
-                    for (Object gr : (ArrayList) result.getParsedValue())
-                    {
-                        if (gr instanceof SurveyResult) // this means we have a single set of grouped results to process.
-                        {
-                            groupedResultList.add((ArrayList) result.getParsedValue());
-                            break;
-                        }
-                        else
-                        {
-                            groupedResultList.add((ArrayList) gr);
-                        }
-                    }
-
-                    // store the data for each of the group result sets
-                    for (List<SurveyResult> groupResults : groupedResultList)
-                    {
-                        String listName = result.getListName();
-                        Map<String, Object> data = new ArrayListMap<>();
-                        data.put(parentKey.getKey(), parentKey.getValue());
-                        Map<String, Object> row = storeListResults(activityId, listName, groupResults, data, errors, container, user, participantId);
-                        if (!row.isEmpty())
-                        {
-                            Pair<String, Integer> rowKey = new Pair<>(listName + "Id", (Integer) row.get("Key"));
-                            List<SurveyResult> multiValuedResults = getMultiValuedResults(listName, groupResults);
-                            storeMultiValuedResults(multiValuedResults, activityId, rowKey, errors, container, user, participantId);
-                        }
-                    }
-                }
-            }
-        }
-    }
-
-    /**
-     * Stores a set of values for a choice response
-     * @param result the result whose values are being stored
-     * @param activityId identifier for the survey being processed
-     * @param parentKey the key for the list to which the choice will be associated
-     * @param errors the set of validation errors encountered thus far
-     * @param container the container for the lists
-     * @param user user to do the inserts
-     * @param participantId of respondent
-     * @throws Exception if there is a problem finding or updating the appropriate lists
-     */
-    private void storeResultChoices(@NotNull SurveyResult result, @NotNull Integer activityId, @NotNull Pair<String, Integer> parentKey, @NotNull List<String> errors, @NotNull Container container, @NotNull User user, @NotNull Integer participantId) throws Exception
-    {
-        if (result.getSkipped()) // store only metadata if the response was skipped
-            storeResponseMetadata(Collections.singletonList(result), activityId, container, user, participantId);
-        else
-        {
-            TableInfo table = getResultTable(result.getListName(), container, user);
-            validateListColumn(table, result.getKey(), SurveyStep.StepResultType.Text, errors);
-
-            if (errors.isEmpty())
+            else if (result.getStepResultType() == SurveyStep.StepResultType.TextChoice)
             {
+                PendingListRows choiceRows = pending.computeIfAbsent(result.getListName(), listName -> new PendingListRows(listName, result.getKey()));
                 if (result.getParsedValue() != null)
                 {
                     for (TextChoiceResult value : (List<TextChoiceResult>) result.getParsedValue())
@@ -1174,35 +1599,162 @@ public class MobileAppStudyManager
                         if (StringUtils.isNotBlank(value.getOtherText()))
                             data.put(getOtherOptionKey(result.getKey()), value.getOtherText());
 
-                        storeListData(table, data, container, user);
+                        choiceRows.add(data, null);
+                    }
+                }
+
+                addResponseMetadata(Collections.singletonList(result), activityId, container, participantId, metadata);
+            }
+            else // result is of type GROUPED_RESULT
+            {
+                // two scenarios, groupedResult is an array of SurveyResult objects or is an array of an array of SurveyResult objects
+                List<List<SurveyResult>> groupedResultList = new ArrayList<>();
+                for (Object gr : (ArrayList) result.getParsedValue())
+                {
+                    if (gr instanceof SurveyResult) // this means we have a single set of grouped results to process.
+                    {
+                        groupedResultList.add((ArrayList) result.getParsedValue());
+                        break;
+                    }
+                    else
+                    {
+                        groupedResultList.add((ArrayList) gr);
                     }
                 }
 
-                storeResponseMetadata(Collections.singletonList(result), activityId, container, user, participantId);
+                // queue the data for each of the group result sets
+                for (List<SurveyResult> groupResults : groupedResultList)
+                {
+                    Map<String, Object> data = new ArrayListMap<>();
+                    data.put(parentKey.getKey(), parentKey.getValue());
+                    pending.computeIfAbsent(result.getListName(), listName -> new PendingListRows(listName, null)).add(data, groupResults);
+                }
             }
         }
     }
 
     /**
-     * Stores the response metadata for the given results
+     * Sets the response metadata fields of the given results and adds them to the metadata to be stored
      * @param results the results whose metadata is to be stored
      * @param activityId the identifier of the survey whose responses are being stored
      * @param container the container in which the lists live
-     * @param user the user to be used for inserting the data
      * @param participantId of respondent
+     * @param metadata the response metadata collected thus far
      */
-    private void storeResponseMetadata(@NotNull List<SurveyResult> results, @NotNull Integer activityId, @NotNull Container container, @NotNull User user, @NotNull Integer participantId)
+    private void addResponseMetadata(@NotNull List<SurveyResult> results, @NotNull Integer activityId, @NotNull Container container, @NotNull Integer participantId, @NotNull List<SurveyResult> metadata)
     {
         for (SurveyResult result : results)
         {
-            MobileAppStudySchema schema = MobileAppStudySchema.getInstance();
-            TableInfo responseMetadataTable = schema.getTableInfoResponseMetadata();
             result.setActivityId(activityId);
             result.setContainer(container);
             result.setParticipantId(participantId);
             result.setFieldName(result.getKey());
+            metadata.add(result);
+        }
+    }
 
-            Table.insert(user, responseMetadataTable, result);
+    /**
+     * Stores the response metadata for the given results as JDBC batches of a single prepared insert, setting the
+     * same audit columns Table.insert would for those the table has
+     * @param results the results whose metadata is to be stored
+     * @param container the container in which the lists live
+     * @param user the user storing the data
+     */
+    private void storeResponseMetadata(@NotNull List<SurveyResult> results, @NotNull Container container, @Nullable User user)
+    {
+        if (results.isEmpty())
+            return;
+
+        MobileAppStudySchema schema = MobileAppStudySchema.getInstance();
+        TableInfo responseMetadataTable = schema.getTableInfoResponseMetadata();
+        Date now = new Date();
+        Integer userId = user == null ? null : user.getUserId();
+
+        Map<String, Object> audit = new LinkedHashMap<>();
+        audit.put("Created", new Parameter.TypedValue(now, JdbcType.TIMESTAMP));
+        if (responseMetadataTable.getColumn("CreatedBy") != null)
+            audit.put("CreatedBy", new Parameter.TypedValue(userId, JdbcType.INTEGER));
+        if (responseMetadataTable.getColumn("Modified") != null)
+            audit.put("Modified", new Parameter.TypedValue(now, JdbcType.TIMESTAMP));
+        if (responseMetadataTable.getColumn("ModifiedBy") != null)
+            audit.put("ModifiedBy", new Parameter.TypedValue(userId, JdbcType.INTEGER));
+
+        List<String> columns = new ArrayList<>(List.of("Container", "ListName", "ActivityId", "FieldName", "StartTime", "EndTime", "Skipped", "ParticipantId"));
+        columns.addAll(audit.keySet());
+        String sql = "INSERT INTO " + responseMetadataTable.getSelectName() + " (" + String.join(", ", columns) + ") VALUES (" +
+                StringUtils.repeat("?", ", ", columns.size()) + ")";
+
+        for (List<SurveyResult> batch : Lists.partition(results, METADATA_INSERT_BATCH_SIZE))
+        {
+            List<List<?>> paramList = new ArrayList<>(batch.size());
+            for (SurveyResult result : batch)
+            {
+                // start and end times are frequently null, so type them explicitly
+                List<Object> params = new ArrayList<>(columns.size());
+                params.add(container.getId());
+                params.add(result.getListName());
+                params.add(result.getActivityId());
+                params.add(result.getFieldName());
+                params.add(new Parameter.TypedValue(result.getStartTime(), JdbcType.TIMESTAMP));
+                params.add(new Parameter.TypedValue(result.getEndTime(), JdbcType.TIMESTAMP));
+                params.add(new Parameter.TypedValue(result.getSkipped(), JdbcType.BOOLEAN));
+                params.add(result.getParticipantId());
+                params.addAll(audit.values());
+                paramList.add(params);
+            }
+            Table.batchExecute(schema.getSchema(), sql, paramList);
+        }
+    }
+
+    /**
+     * Rows waiting to be inserted into a list, along with the results each was built from
+     */
+    private static class PendingListRows
+    {
+        private final String _listName;
+        private final String _choiceKey;
+        private final List<Map<String, Object>> _rows = new ArrayList<>();
+        private final List<List<SurveyResult>> _results = new ArrayList<>();
+
+        /**
+         * @param listName list the rows are bound for
+         * @param choiceKey the result key for a choice list, whose rows each hold a single selected value; null otherwise
+         */
+        private PendingListRows(@NotNull String listName, @Nullable String choiceKey)
+        {
+            _listName = listName;
+            _choiceKey = choiceKey;
+        }
+
+        private void add(@NotNull Map<String, Object> data, @Nullable List<SurveyResult> results)
+        {
+            _rows.add(data);
+            _results.add(results);
+        }
+
+        private String getListName()
+        {
+            return _listName;
+        }
+
+        private String getChoiceKey()
+        {
+            return _choiceKey;
+        }
+
+        private boolean isChoiceList()
+        {
+            return _choiceKey != null;
+        }
+
+        private List<Map<String, Object>> getRows()
+        {
+            return _rows;
+        }
+
+        private List<List<SurveyResult>> getResults()
+        {
+            return _results;
         }
     }
 
@@ -1213,8 +1765,8 @@ public class MobileAppStudyManager
      */
     public void withdrawFromStudy(String participantId, boolean delete) throws Exception
     {
-        //Get participant
-        Participant participant = this.getParticipantFromAppToken(participantId);
+        //Get participant, bypassing the cache since it is modified below
+        Participant participant = this.selectParticipantFromAppToken(participantId);
 
         //sanity check, Should already be checked during initial validation
         if (participant == null)
@@ -1235,10 +1787,14 @@ public class MobileAppStudyManager
                 MobileAppStudySchema schema = MobileAppStudySchema.getInstance();
                 participant = Table.update(null, schema.getTableInfoParticipant(), participant, participant.getRowId());
             }
+            transaction.addCommitTask(() -> _appTokenCache.remove(participantId), DbScope.CommitTaskOption.IMMEDIATE, DbScope.CommitTaskOption.POSTCOMMIT);
 
-            //Delete data if necessary
+            //Delete data if necessary, in the background once the withdrawal is committed
             if (delete)
-                deleteParticipantData(participant);
+            {
+                int purgeId = ParticipantPurger.get().create(participant.getContainer(), participant.getRowId());
+                transaction.addCommitTask(() -> ParticipantPurger.get().submit(purgeId), DbScope.CommitTaskOption.POSTCOMMIT);
+            }
 
             transaction.commit();
         }
@@ -1250,29 +1806,17 @@ public class MobileAppStudyManager
     }
 
     /**
-     * Delete participant data from schema tables and Survey lists
-     * Assumes: all lists in participant container with a participantId field should be deleted from
-     * @param participant
-     * @throws Exception
-     */
-    private void deleteParticipantData(Participant participant) throws Exception
-    {
-        logger.info(String.format("Deleting participant [%1$s]'s data.", participant.getRowId()));
-        deleteParticipantDataFromSurveyLists(participant);
-        deleteParticipantDataFromTables(participant);
-    }
-
-    /**
-     * Initiate deletion of participant data from schema tables
-     * @param participant
+     * Delete participant data from schema tables, once it has been deleted from the lists
+     * @param participantId RowId of the participant
      */
-    private void deleteParticipantDataFromTables(Participant participant)
+    void deleteParticipantDataFromTables(int participantId)
     {
+        logger.info(String.format("Deleting participant [%1$s]'s data.", participantId));
         MobileAppStudySchema schema = MobileAppStudySchema.getInstance();
 
-        deleteParticipantDataFromTable(schema::getTableInfoResponseMetadata, participant.getRowId());
-        deleteParticipantDataFromTable(schema::getTableInfoResponse, participant.getRowId());
-        deleteParticipantDataFromTable(schema::getTableInfoEnrollmentToken, participant.getRowId());
+        deleteParticipantDataFromTable(schema::getTableInfoResponseMetadata, participantId);
+        deleteParticipantDataFromTable(schema::getTableInfoResponse, participantId);
+        deleteParticipantDataFromTable(schema::getTableInfoEnrollmentToken, participantId);
     }
 
     /**
@@ -1288,93 +1832,48 @@ public class MobileAppStudyManager
     }
 
     /**
-     * Delete participant data from all lists
-     * @param participant to target for deletion
-     * @throws Exception
-     */
-    private void deleteParticipantDataFromSurveyLists(Participant participant) throws Exception
-    {
-        // Create a LimitedUser to use for checking permissions, wrapping the Guest user
-        User user = new LimitedUser(UserManager.getGuestUser(),
-                new int[0], Collections.singleton(RoleManager.getRole(EditorRole.class)), false);
-
-        //Get all lists in the container
-        Collection<ListDefinition> lists = ListService.get().getLists(participant.getContainer()).values();
-
-        for (ListDefinition list :lists)
-        {
-            Container container = participant.getContainer();
-
-            if (list.getName().equalsIgnoreCase(PARTICIPANT_PROPERTIES_LIST_NAME))
-                deleteParticipantPropertiesFromList(list, container, getEnrollmentToken(container, participant.getRowId()), user);
-            else
-                deleteParticipantFromList(list, container, participant.getRowId(), user);
-        }
-    }
-
-    /**
-     * Delete participant data from ParticipantProperties list using EnrollmentToken
-     * @param list participantProperties ListDefinition
-     * @param container hosting study
-     * @param enrollmentToken token associated to participant
-     * @param user authorized for delete permissions
-     * @throws Exception
-     */
-    private void deleteParticipantPropertiesFromList(ListDefinition list, Container container, String enrollmentToken, User user) throws Exception
-    {
-        //Get the table
-        TableInfo table = list.getTable(user, container);
-        if (table == null)
-            throw new IllegalStateException("Unable to find table for list '" + list.getName() + "' in container '" + container.getName() + "'");
-
-        QueryUpdateService qus = table.getUpdateService();
-        if (qus == null)
-            throw new IllegalStateException("Unable to delete participant data because update service for list " + table.getName() + " was null");
-
-        qus.deleteRows(user, container, Arrays.asList(Collections.singletonMap("EnrollmentToken", enrollmentToken)), null,null);
-    }
-
-    /**
-     * Delete participant data from a list
+     * Delete participant data from a list through its update service, a batch of rows at a time. Used for lists with
+     * attachment fields, which can't be cleared directly since their attachments must be removed with the rows.
      * @param list ListDefinition to delete data from
      * @param container hosting list and participant
-     * @param participantId to target
+     * @param column identifying the participant, ParticipantId or EnrollmentToken
+     * @param value of the column for the participant
      * @param user LabKey user executing the deletion action
+     * @return the number of rows deleted
      * @throws Exception
      */
-    private void deleteParticipantFromList(ListDefinition list, Container container, Integer participantId, User user) throws Exception
+    int deleteParticipantRowsFromList(ListDefinition list, Container container, String column, Object value, User user) throws Exception
     {
         //Get the table
         TableInfo table = list.getTable(user, container);
         if (table == null)
             throw new IllegalStateException("Unable to find table for list '" + list.getName() + "' in container '" + container.getName() + "'");
 
-        List<ColumnInfo> piCols = table.getColumns("ParticipantId");
-        if (piCols == null || piCols.size() == 0)
-            return;     //No participantId column in list.
-
         QueryUpdateService qus = table.getUpdateService();
         if (qus == null)
             throw new IllegalStateException("Unable to delete participant data because update service for list " + table.getName() + " was null");
 
-        //Get rowIds associated to this participant
-        List<Map<String, Object>> rows = getListRowKeys(table, participantId);
-        if (rows != null && rows.size() > 0)
-            qus.deleteRows(user, container, rows, null,null);
+        //Get keys of the rows associated to this participant
+        List<Map<String, Object>> rows = getListRowKeys(table, column, value);
+        for (List<Map<String, Object>> batch : Lists.partition(rows, LIST_DELETE_BATCH_SIZE))
+            qus.deleteRows(user, container, batch, null,null);
+
+        return rows.size();
     }
 
     /**
-     * Get the rowIds associated to a participant
+     * Get the primary keys of the rows associated to a participant
      * @param targetTable table to query
-     * @param participantId to filter for
+     * @param column identifying the participant
+     * @param value of the column for the participant
      * @return
      * @throws Exception
      */
-    private List<Map<String, Object>> getListRowKeys(TableInfo targetTable, int participantId) throws Exception
+    private List<Map<String, Object>> getListRowKeys(TableInfo targetTable, String column, Object value) throws Exception
     {
         List<Map<String, Object>> deleteKeys = new ArrayList<>();
 
-        SimpleFilter filter = new SimpleFilter(FieldKey.fromParts("ParticipantId"), participantId);
+        SimpleFilter filter = new SimpleFilter(FieldKey.fromParts(column), value);
         try (Results targetDeletes = new TableSelector(targetTable, targetTable.getPkColumns(), filter, null).getResults(false))
         {
             while (targetDeletes.next())
@@ -1391,37 +1890,25 @@ public class MobileAppStudyManager
         return deleteKeys;
     }
 
-    public boolean isKnownVersion(String appToken, String activityId, String versionId, int responseId)
-    {
-        /* --Equivalent postgres SQL
-        SELECT EXISTS(
-            SELECT 1
-            FROM participant p, mobileappstudy.participant p2, mobileappstudy.response r
-            WHERE p2.apptoken = ?
-              AND p2.studyid = p.studyid
-              AND p.rowid = r.participantid
-              AND r.rowid != ?
-              AND r.activityid = ?
-              AND r.surveyversion = ?
-              AND r.status = 1
-        )
-        */
+    /**
+     * Check if another response for the activity version has been processed in the study, meaning its design was
+     * applied. Responses carry their study's container, so this is answered from the Response table alone using
+     * IX_Response_ActivityVersion.
+     */
+    public boolean isKnownVersion(@NotNull Container container, String activityId, String versionId, int responseId)
+    {
         MobileAppStudySchema schema = MobileAppStudySchema.getInstance();
 
         SQLFragment sql = new SQLFragment();
         sql.append("  SELECT 1\n")
-            .append("  FROM ")
-                .append(schema.getTableInfoParticipant(), "p").append(",")
-                .append(schema.getTableInfoParticipant(), "p2").append(",")
-                .append(schema.getTableInfoResponse(), "r").append("\n")
-            .append("  WHERE p.rowid = r.participantid\n")                  //Join response & participant
-            .append("    AND p.studyid = p2.studyid\n")                     //Limit study
-            .append("    AND p2.apptoken = ?\n").add(appToken)
-            .append("    AND r.rowid != ?\n").add(responseId)               //Ignore current response
-            .append("    AND r.activityid = ?\n").add(activityId)               //
+            .append("  FROM ").append(schema.getTableInfoResponse(), "r").append("\n")
+            .append("  WHERE r.container = ?\n").add(container)
+            .append("    AND r.activityid = ?\n").add(activityId)
             .append("    AND r.surveyversion = ?\n").add(versionId)
                 //pending implies it hasn't been applied and error means it may not have worked...
-            .append("    AND r.status = ?\n").add(ResponseStatus.PROCESSED.getPkId());
+            .append("    AND r.status IN (?, ?, ?)\n")
+                .add(ResponseStatus.PROCESSED.getPkId()).add(ResponseStatus.FORWARDING.getPkId()).add(ResponseStatus.FORWARDED.getPkId())
+            .append("    AND r.rowid != ?\n").add(responseId);               //Ignore current response
 
         return new SqlSelector(schema.getSchema(), sql).exists();
     }
@@ -1451,22 +1938,18 @@ public class MobileAppStudyManager
 
     private void enqueueForwardingJob(final User user,final Container container)
     {
-        SurveyResponseForwardingJob forwarder = new SurveyResponseForwardingJob();
-
-        try
-        {
-            forwarder.call(user, container);
-        }
-        catch (Exception e)
-        {
-            forwarder.setUnsuccessful(container);
-        }
+        ForwardingDispatcher.get().signal(container, user);
     }
 
-    public void setForwardingJobUnsucessful(Container c)
+    public void setForwardingJobUnsucessful(Container c, String message)
     {
         SurveyResponseForwardingJob forwarder = new SurveyResponseForwardingJob();
-        forwarder.setUnsuccessful(c);
+        forwarder.setUnsuccessful(c, message);
+    }
+
+    public void setForwardingJobSuccessful(Container c)
+    {
+        ForwardingCircuitBreaker.get().recordSuccess(c);
     }
 
     public Map<String, String> getForwardingProperties(Container container)
@@ -1479,6 +1962,8 @@ public class MobileAppStudyManager
         logger.info( String.format("Updating forwarder configuration for container: %1$s", container.getName()));
         form.getForwardingType().setForwardingProperties(container, form);
 
+        // A new configuration deserves a fresh attempt rather than waiting out the old endpoint's backoff
+        ForwardingCircuitBreaker.get().reset(container);
         ForwardingScheduler.get().enableContainer(container, form.getForwardingType() != ForwardingType.Disabled);
     }
 
@@ -1488,9 +1973,7 @@ public class MobileAppStudyManager
      */
     public List<String> getStudyContainers()
     {
-        MobileAppStudySchema schema = MobileAppStudySchema.getInstance();
-        TableSelector selector = new TableSelector(schema.getTableInfoStudy(), Collections.singleton("Container"), null, null);
-        return selector.getArrayList(String.class);
+        return StudyRegistry.get().getContainerIds();
     }
 
     public String getEnrollmentToken(Container container, Integer participantId)
@@ -1502,13 +1985,95 @@ public class MobileAppStudyManager
         return new TableSelector(column, filter, null).getObject(String.class);
     }
 
+    /**
+     * Get the enrollment tokens of a set of participants with a single query
+     * @param container hosting the study
+     * @param participantIds to get tokens for
+     * @return map of participant rowId to token, participants without a token are absent
+     */
+    public Map<Integer, String> getEnrollmentTokens(@NotNull Container container, @NotNull Collection<Integer> participantIds)
+    {
+        Map<Integer, String> tokens = new HashMap<>();
+        if (participantIds.isEmpty())
+            return tokens;
+
+        SimpleFilter filter = SimpleFilter.createContainerFilter(container);
+        filter.addInClause(FieldKey.fromParts("ParticipantId"), participantIds);
+        TableInfo table = MobileAppStudySchema.getInstance().getTableInfoEnrollmentToken();
+        new TableSelector(table, table.getColumns("ParticipantId", "Token"), filter, null).forEachMap(row ->
+            tokens.put((Integer) row.get("ParticipantId"), (String) row.get("Token"))
+        );
+
+        return tokens;
+    }
+
+    /**
+     * @return true if the container has responses waiting to be forwarded, including any whose claim has expired
+     */
     public boolean hasResponsesToForward(@NotNull Container container)
     {
-        FieldKey fkey = FieldKey.fromParts("Status");
         SimpleFilter filter = SimpleFilter.createContainerFilter(container);
-        filter.addCondition(fkey, ResponseStatus.PROCESSED.getPkId());
-        return new TableSelector(MobileAppStudySchema.getInstance().getTableInfoResponse(), filter, null)
-                .getRowCount() > 0;
+        // Parenthesized so the OR stays within the container filter it is ANDed with
+        filter.addWhereClause("(Status = ? OR (Status = ? AND ClaimedAt < ?))",
+                new Object[]{ResponseStatus.PROCESSED.getPkId(), ResponseStatus.FORWARDING.getPkId(), getExpiredClaimDate()},
+                FieldKey.fromParts("Status"), FieldKey.fromParts("ClaimedAt"));
+        // Stops at the first row found by IX_Response_ToForward rather than counting them all
+        return new TableSelector(MobileAppStudySchema.getInstance().getTableInfoResponse(), filter, null).exists();
+    }
+
+    /**
+     * Claim the next page of responses to forward by moving them to FORWARDING. Rows locked by a concurrent claim are
+     * skipped rather than waited on, so concurrent jobs, even on different servers, never get the same response.
+     * Claims left behind by a job that died are taken over once they are older than the claim lease.
+     * @param container hosting the study
+     * @param afterRowId only claim responses with a greater RowId, i.e., the last RowId of the previous page
+     * @param maxRows size of the page
+     * @return the claimed responses in RowId order
+     */
+    public List<SurveyResponse> claimResponsesToForward(@NotNull Container container, int afterRowId, int maxRows)
+    {
+        MobileAppStudySchema schema = MobileAppStudySchema.getInstance();
+        TableInfo responseTable = schema.getTableInfoResponse();
+
+        // ClaimedAt starts the lease, Processed is left as the time the response was shredded
+        SQLFragment sql = new SQLFragment("UPDATE ").append(responseTable.getSelectName())
+                .append(" SET Status = ?, ClaimedAt = ?").add(ResponseStatus.FORWARDING.getPkId()).add(new Date())
+                .append(" WHERE RowId IN (SELECT RowId FROM ").append(responseTable.getSelectName())
+                .append(" WHERE Container = ? AND RowId > ?").add(container).add(afterRowId)
+                .append(" AND (Status = ? OR (Status = ? AND ClaimedAt < ?))")
+                .add(ResponseStatus.PROCESSED.getPkId()).add(ResponseStatus.FORWARDING.getPkId()).add(getExpiredClaimDate())
+                .append(" ORDER BY RowId LIMIT ?").add(maxRows)
+                .append(" FOR UPDATE SKIP LOCKED) RETURNING RowId");
+        List<Integer> rowIds = new SqlSelector(schema.getSchema(), sql).getArrayList(Integer.class);
+        if (rowIds.isEmpty())
+            return Collections.emptyList();
+
+        SimpleFilter filter = new SimpleFilter();
+        filter.addInClause(FieldKey.fromParts("RowId"), rowIds);
+        return new TableSelector(responseTable, filter, new Sort("RowId")).getArrayList(SurveyResponse.class);
+    }
+
+    /**
+     * Return claimed responses that weren't forwarded to PROCESSED, so the next job will pick them up
+     * @param rowIds of the claimed responses, those already forwarded are left as they are
+     */
+    public void releaseForwardingClaims(@NotNull Collection<Integer> rowIds)
+    {
+        if (rowIds.isEmpty())
+            return;
+
+        MobileAppStudySchema schema = MobileAppStudySchema.getInstance();
+        SQLFragment sql = new SQLFragment("UPDATE ").append(schema.getTableInfoResponse().getSelectName())
+                .append(" SET Status = ?").add(ResponseStatus.PROCESSED.getPkId())
+                .append(" WHERE Status = ?").add(ResponseStatus.FORWARDING.getPkId())
+                .append(" AND RowId ");
+        schema.getSqlDialect().appendInClauseSql(sql, rowIds);
+        new SqlExecutor(schema.getSchema()).execute(sql);
+    }
+
+    private Date getExpiredClaimDate()
+    {
+        return new Date(System.currentTimeMillis() - FORWARDING_CLAIM_LEASE_MS);
     }
 
     public boolean isForwardingEnabled(Container container)
@@ -1518,7 +2083,7 @@ public class MobileAppStudyManager
 
     public void updateStudyDesign(Container container, User user) throws Exception
     {
-        updateDesign(getStudy(container), null, user);
+        updateDesign(getStudy(container), null, user, true);
     }
 
     public @NotNull Collection<ParticipantProperty> getParticipantProperties(Container container, User user, String token, String shortName, boolean preEnrollmentOnly) throws InvalidKeyException
@@ -1574,6 +2139,18 @@ public class MobileAppStudyManager
      * @param listDef ListDefinition for list to insert tokens into
      */
     public void insertParticipantPropertiesEnrollmentTokens(Container container, User user, ListDefinition listDef) throws Exception
+    {
+        insertParticipantPropertiesEnrollmentTokens(container, user, listDef, null);
+    }
+
+    /**
+     * Insert enrollment tokens that aren't already in the list
+     * @param container hosting study
+     * @param user user with insert permissions
+     * @param listDef ListDefinition for list to insert tokens into
+     * @param batchId (can be null) if provided, only consider the tokens of this batch
+     */
+    public void insertParticipantPropertiesEnrollmentTokens(Container container, User user, ListDefinition listDef, @Nullable Integer batchId) throws Exception
     {
         if (listDef == null)
         {
@@ -1583,15 +2160,14 @@ public class MobileAppStudyManager
 
         List<ListItem> participantProperties = new ArrayList<>();
 
-        Collection<EnrollmentToken> tokens = getEnrollmentTokens(container, user);
-        for (EnrollmentToken token : tokens)
-            if (listDef.getListItem(token.getToken(), user, container) == null)
-            {
-                ListItem row = listDef.createListItem();
-                row.setKey(token.getToken());
-                row.setProperty(listDef.getDomain().getPropertyByName("EnrollmentToken"), token.getToken());
-                participantProperties.add(row);
-            }
+        DomainProperty tokenProperty = listDef.getDomain().getPropertyByName("EnrollmentToken");
+        for (String token : getEnrollmentTokensNotInList(container, user, listDef, batchId))
+        {
+            ListItem row = listDef.createListItem();
+            row.setKey(token);
+            row.setProperty(tokenProperty, token);
+            participantProperties.add(row);
+        }
 
         if (participantProperties.size() > 0)
         {
@@ -1602,11 +2178,182 @@ public class MobileAppStudyManager
         else logger.debug("No enrollment tokens to insert.");
     }
 
-    private Collection<EnrollmentToken> getEnrollmentTokens(Container container, User user)
+    /**
+     * Find the enrollment tokens that don't have a row in the list, using a single anti-join against the list table
+     * @param container hosting study
+     * @param user user with read permissions on the list
+     * @param listDef ListDefinition for list keyed by enrollment token
+     * @param batchId (can be null) if provided, only consider the tokens of this batch
+     * @return the missing token values
+     */
+    private List<String> getEnrollmentTokensNotInList(Container container, User user, ListDefinition listDef, @Nullable Integer batchId)
     {
         MobileAppStudySchema schema = MobileAppStudySchema.getInstance();
-        SimpleFilter filter = SimpleFilter.createContainerFilter(container);
-        TableSelector selector = new TableSelector(schema.getTableInfoEnrollmentToken(), filter, null);
-        return selector.getCollection(EnrollmentToken.class);
+        TableInfo listTable = listDef.getTable(user, container);
+        if (listTable == null)
+            throw new IllegalStateException("Unable to find table for list '" + listDef.getName() + "' in container '" + container.getName() + "'");
+
+        SQLFragment sql = new SQLFragment("SELECT t.Token FROM ").append(schema.getTableInfoEnrollmentToken(), "t")
+                .append(" WHERE t.Container = ?").add(container);
+        if (batchId != null)
+            sql.append(" AND t.BatchId = ?").add(batchId);
+        sql.append(" AND NOT EXISTS (SELECT 1 FROM ").append(listTable, "l")
+                .append(" WHERE ").append(listTable.getColumn(listDef.getKeyName()).getValueSql("l")).append(" = t.Token)");
+
+        return new SqlSelector(schema.getSchema(), sql).getArrayList(String.class);
+    }
+
+    /**
+     * Exercises the claim and lease SQL used by the shredder and forwarder against the database
+     */
+    public static class TestCase extends Assert
+    {
+        private static final String FOLDER_NAME = "MobileAppStudyManagerTest";
+        private static final String ACTIVITY_ID = "ClaimTest";
+        private static final String SURVEY_VERSION = "1";
+
+        private final MobileAppStudyManager _manager = MobileAppStudyManager.get();
+        private Container _container;
+        private Participant _participant;
+
+        @Before
+        public void setUp()
+        {
+            User user = TestContext.get().getUser();
+            _container = TestFolder.create(FOLDER_NAME);
+            String shortName = "CLAIMTEST" + RandomStringUtils.randomAlphanumeric(6).toUpperCase();
+            _manager.insertOrUpdateStudy(shortName, true, _container, user);
+            _participant = _manager.enrollParticipant(shortName, null, "NA");
+        }
+
+        @After
+        public void tearDown()
+        {
+            TestFolder.delete(_container);
+        }
+
+        @Test
+        public void testClaimPendingResponses()
+        {
+            List<Integer> rowIds = insertResponses(3);
+
+            List<SurveyResponse> first = _manager.claimPendingResponses(getKey(), 0, Integer.MAX_VALUE, 2);
+            assertEquals(rowIds.subList(0, 2), getRowIds(first));
+            for (SurveyResponse response : first)
+            {
+                assertEquals(ResponseStatus.SHREDDING, response.getStatus());
+                assertNotNull(response.getClaimedAt());
+            }
+
+            // Claimed responses are skipped, and the bounds are honored
+            assertTrue(_manager.claimPendingResponses(getKey(), 0, rowIds.get(1), 2).isEmpty());
+            assertEquals(rowIds.subList(2, 3), getRowIds(_manager.claimPendingResponses(getKey(), 0, Integer.MAX_VALUE, 2)));
+            assertTrue(_manager.claimPendingResponses(getKey(), 0, Integer.MAX_VALUE, 2).isEmpty());
+            assertTrue(_manager.getPendingResponseBatchKeys(rowIds).isEmpty());
+        }
+
+        @Test
+        public void testExpiredShreddingClaim()
+        {
+            List<Integer> rowIds = insertResponses(2);
+            List<SurveyResponse> claimed = _manager.claimPendingResponses(getKey(), 0, Integer.MAX_VALUE, 2);
+            assertEquals(rowIds, getRowIds(claimed));
+
+            // A claim older than the lease is taken over, as when the server holding it crashed
+            setClaimedAt(rowIds.get(0), new Date(System.currentTimeMillis() - SHREDDING_CLAIM_LEASE_MS - TimeUnit.MINUTES.toMillis(1)));
+            assertEquals(1, _manager.getPendingResponseBatchKeys(rowIds).size());
+            List<SurveyResponse> takenOver = _manager.claimPendingResponses(getKey(), 0, Integer.MAX_VALUE, 2);
+            assertEquals(rowIds.subList(0, 1), getRowIds(takenOver));
+
+            // The original claim on the taken over response can no longer be renewed
+            List<SurveyResponse> renewed = _manager.renewShreddingClaims(claimed);
+            assertEquals(rowIds.subList(1, 2), getRowIds(renewed));
+            assertEquals(renewed.get(0).getClaimedAt(), _manager.getResponse(rowIds.get(1)).getClaimedAt());
+
+            // The new claim still holds
+            assertEquals(rowIds.subList(0, 1), getRowIds(_manager.renewShreddingClaims(takenOver)));
+        }
+
+        @Test
+        public void testCancelShredding()
+        {
+            List<Integer> rowIds = insertResponses(2);
+            _manager.claimPendingResponses(getKey(), 0, rowIds.get(0), 1);
+
+            assertEquals("Claimed response should be left to finish", 1, _manager.cancelShredding(_participant.getRowId()));
+            assertEquals(ResponseStatus.SHREDDING, _manager.getResponse(rowIds.get(0)).getStatus());
+            assertEquals(ResponseStatus.ERROR, _manager.getResponse(rowIds.get(1)).getStatus());
+
+            setStatus(rowIds.get(0), ResponseStatus.PROCESSED);
+            assertEquals(0, _manager.cancelShredding(_participant.getRowId()));
+        }
+
+        @Test
+        public void testForwardingClaims()
+        {
+            List<Integer> rowIds = insertResponses(3);
+            assertFalse(_manager.hasResponsesToForward(_container));
+            rowIds.forEach(rowId -> setStatus(rowId, ResponseStatus.PROCESSED));
+            assertTrue(_manager.hasResponsesToForward(_container));
+
+            List<SurveyResponse> claimed = _manager.claimResponsesToForward(_container, 0, 2);
+            assertEquals(rowIds.subList(0, 2), getRowIds(claimed));
+            assertEquals(ResponseStatus.FORWARDING, claimed.get(0).getStatus());
+            assertEquals(rowIds.subList(2, 3), getRowIds(_manager.claimResponsesToForward(_container, rowIds.get(1), 2)));
+            assertFalse(_manager.hasResponsesToForward(_container));
+
+            // Only unforwarded claims are released
+            setStatus(rowIds.get(0), ResponseStatus.FORWARDED);
+            _manager.releaseForwardingClaims(rowIds.subList(0, 2));
+            assertEquals(ResponseStatus.FORWARDED, _manager.getResponse(rowIds.get(0)).getStatus());
+            assertEquals(ResponseStatus.PROCESSED, _manager.getResponse(rowIds.get(1)).getStatus());
+            assertEquals(rowIds.subList(1, 2), getRowIds(_manager.claimResponsesToForward(_container, 0, 2)));
+
+            // A claim older than the lease is taken over, as when the job holding it died
+            setClaimedAt(rowIds.get(2), new Date(System.currentTimeMillis() - FORWARDING_CLAIM_LEASE_MS - TimeUnit.MINUTES.toMillis(1)));
+            assertTrue(_manager.hasResponsesToForward(_container));
+            assertEquals(rowIds.subList(2, 3), getRowIds(_manager.claimResponsesToForward(_container, 0, 2)));
+        }
+
+        private List<Integer> insertResponses(int count)
+        {
+            List<Integer> rowIds = new ArrayList<>();
+            for (int i = 0; i < count; i++)
+                rowIds.add(_manager.insertResponse(new SurveyResponse(_participant.getAppToken(), "{}", ACTIVITY_ID, SURVEY_VERSION)).getRowId());
+            return rowIds;
+        }
+
+        private SurveyResponse getKey()
+        {
+            SurveyResponse key = new SurveyResponse();
+            key.setContainer(_container);
+            key.setActivityId(ACTIVITY_ID);
+            key.setSurveyVersion(SURVEY_VERSION);
+            return key;
+        }
+
+        private List<Integer> getRowIds(List<SurveyResponse> responses)
+        {
+            return responses.stream().map(SurveyResponse::getRowId).collect(Collectors.toList());
+        }
+
+        private void setStatus(int rowId, ResponseStatus status)
+        {
+            update(new SQLFragment("Status = ?").add(status.getPkId()), rowId);
+        }
+
+        private void setClaimedAt(int rowId, Date claimedAt)
+        {
+            update(new SQLFragment("ClaimedAt = ?").add(claimedAt), rowId);
+        }
+
+        private void update(SQLFragment set, int rowId)
+        {
+            MobileAppStudySchema schema = MobileAppStudySchema.getInstance();
+            SQLFragment sql = new SQLFragment("UPDATE ").append(schema.getTableInfoResponse().getSelectName())
+                    .append(" SET ").append(set)
+                    .append(" WHERE RowId = ?").add(rowId);
+            new SqlExecutor(schema.getSchema()).execute(sql);
+        }
     }
 }
@@ -27,9 +27,11 @@ import org.labkey.api.security.roles.RoleManager;
 import org.labkey.api.view.FolderManagement;
 import org.labkey.api.view.SimpleWebPartFactory;
 import org.labkey.api.view.WebPartFactory;
+import org.labkey.mobileappstudy.data.SurveyResult;
 import org.labkey.mobileappstudy.query.MobileAppStudyQuerySchema;
 import org.labkey.mobileappstudy.query.ReadResponsesQuerySchema;
 import org.labkey.mobileappstudy.security.MyStudiesCoordinator;
+import org.labkey.mobileappstudy.surveydesign.SurveyDesignFileIndex;
 import org.labkey.mobileappstudy.view.EnrollmentTokenBatchesWebPart;
 import org.labkey.mobileappstudy.view.StudyConfigWebPart;
 
@@ -60,7 +62,7 @@ public class MobileAppStudyModule extends DefaultModule
     @Override
     public @Nullable Double getSchemaVersion()
     {
-        return 21.000;
+        return 21.003;
     }
 
     @Override
@@ -132,4 +134,26 @@ public class MobileAppStudyModule extends DefaultModule
     {
         return Collections.singleton(MobileAppStudySchema.NAME);
     }
+
+    @Override
+    @NotNull
+    public Set<Class> getIntegrationTests()
+    {
+        return Set.of(
+            MobileAppStudyManager.TestCase.class,
+            StudyRegistry.TestCase.class,
+            SurveyDesignProcessor.TestCase.class
+        );
+    }
+
+    @Override
+    @NotNull
+    public Set<Class> getUnitTests()
+    {
+        return Set.of(
+            ShredderScheduler.TestCase.class,
+            SurveyDesignFileIndex.TestCase.class,
+            SurveyResult.TestCase.class
+        );
+    }
 }
\ No newline at end of file
@@ -35,6 +35,8 @@ public class MobileAppStudySchema
     public static final String RESPONSE_STATUS_TABLE = "ResponseStatus";
     public static final String PARTICIPANT_PROPERTY_METADATA_TABLE = "ParticipantPropertyMetadata";
     public static final String PARTICIPANT_PROPERTY_TYPE_TABLE = "ParticipantPropertyType";
+    public static final String APPLIED_DESIGN_VERSION_TABLE = "AppliedDesignVersion";
+    public static final String PARTICIPANT_PURGE_TABLE = "ParticipantPurge";
 
     public static MobileAppStudySchema getInstance()
     {
@@ -90,4 +92,13 @@ public class MobileAppStudySchema
     {
         return getSchema().getTable(PARTICIPANT_PROPERTY_METADATA_TABLE);
     }
+    public TableInfo getTableInfoAppliedDesignVersion()
+    {
+        return getSchema().getTable(APPLIED_DESIGN_VERSION_TABLE);
+    }
+
+    public TableInfo getTableInfoParticipantPurge()
+    {
+        return getSchema().getTable(PARTICIPANT_PURGE_TABLE);
+    }
 }
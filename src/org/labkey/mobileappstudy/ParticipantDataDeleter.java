@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.mobileappstudy;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.audit.AuditLogService;
+import org.labkey.api.audit.AuditTypeEvent;
+import org.labkey.api.audit.provider.ContainerAuditProvider;
+import org.labkey.api.cache.Cache;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.data.ColumnInfo;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.DbScope;
+import org.labkey.api.data.SQLFragment;
+import org.labkey.api.data.SqlExecutor;
+import org.labkey.api.data.SqlSelector;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.exp.PropertyType;
+import org.labkey.api.exp.list.ListDefinition;
+import org.labkey.api.exp.list.ListService;
+import org.labkey.api.exp.property.Domain;
+import org.labkey.api.exp.property.DomainProperty;
+import org.labkey.api.exp.property.Lookup;
+import org.labkey.api.search.SearchService;
+import org.labkey.api.security.User;
+import org.labkey.api.storage.StorageProvisioner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes a participant's data from a study's lists. Which lists hold participant data, the column identifying the
+ * participant in each, its storage table, and the order to delete them in are worked out from the list domains once
+ * and cached per container. Each list is then cleared with a single DELETE against its storage table, children before
+ * parents. That skips the list's update service, so the work it would do is done here instead: the deleted items are
+ * removed from the search index once the deletion commits, and rather than an audit event per row, one audit event
+ * summarizes the withdrawal. See ParticipantPurger, which runs the deletion.
+ *
+ * Lists with attachment fields still go through the list's update service, so their attachments are removed with the
+ * rows.
+ */
+class ParticipantDataDeleter
+{
+    private static final Logger logger = LogManager.getLogger(ParticipantDataDeleter.class);
+    private static final String PARTICIPANT_ID = "ParticipantId";
+    private static final String ENROLLMENT_TOKEN = "EnrollmentToken";
+    private static final String LISTS_SCHEMA = "lists";
+    private static final String ENTITY_ID = "EntityId";
+
+    private static final Cache<String, List<ListTarget>> _targetCache =
+            CacheManager.getCache(1000, TimeUnit.MINUTES.toMillis(10), "Mobile app participant data lists");
+
+    private ParticipantDataDeleter()
+    {
+    }
+
+    /**
+     * Forget the container's lists, e.g. when a design has changed them
+     */
+    static void invalidate(@NotNull Container container)
+    {
+        _targetCache.remove(container.getId());
+    }
+
+    /**
+     * Delete the participant's rows from a list
+     * @param target list to delete from, from getTargets
+     * @param container hosting the list
+     * @param participantId RowId of the participant
+     * @param enrollmentToken (can be null) identifying the participant in the participant properties list
+     * @param user LabKey user executing the deletion
+     * @return the number of rows deleted
+     */
+    static int deleteFromList(@NotNull ListTarget target, @NotNull Container container, int participantId, @Nullable String enrollmentToken, @NotNull User user) throws Exception
+    {
+        Object value = target.column.equals(PARTICIPANT_ID) ? participantId : enrollmentToken;
+        if (value == null)
+            return 0;
+
+        if (target.storage == null)
+            return MobileAppStudyManager.get().deleteParticipantRowsFromList(target.list, container, target.column, value, user);
+
+        TableInfo storage = target.storage;
+        ColumnInfo column = storage.getColumn(target.column);
+        SQLFragment sql = new SQLFragment("DELETE FROM ").append(storage.getSelectName())
+                .append(" WHERE ").append(column.getSelectName()).append(" = ?").add(value);
+        if (storage.getColumn(ENTITY_ID) == null)
+            return new SqlExecutor(storage.getSchema()).execute(sql);
+
+        // The EntityIds identify the deleted items in the search index
+        sql.append(" RETURNING ").append(storage.getColumn(ENTITY_ID).getSelectName());
+        List<String> entityIds = new SqlSelector(storage.getSchema(), sql).getArrayList(String.class);
+        if (!entityIds.isEmpty())
+            deindex(target.list, entityIds);
+
+        return entityIds.size();
+    }
+
+    /**
+     * Remove deleted list items from the search index, once the deletion commits
+     */
+    private static void deindex(ListDefinition list, List<String> entityIds)
+    {
+        SearchService ss = SearchService.get();
+        if (ss == null || !list.getEachItemIndex())
+            return;
+
+        // Matches the document ids the list module indexes items under
+        Runnable deindex = () -> entityIds.forEach(entityId -> ss.deleteResource("list:" + list.getEntityId() + ":" + entityId));
+        DbScope.Transaction transaction = MobileAppStudySchema.getInstance().getSchema().getScope().getCurrentTransaction();
+        if (transaction != null)
+            transaction.addCommitTask(deindex, DbScope.CommitTaskOption.POSTCOMMIT);
+        else
+            deindex.run();
+    }
+
+    /**
+     * Record a single audit event summarizing the deletion of a participant's data
+     */
+    static void auditDeletion(@NotNull Container container, @NotNull User user, int participantId, int rowsDeleted, int lists)
+    {
+        String comment = String.format("Deleted %1$s row(s) from %2$s list(s) for withdrawn participant [%3$s].", rowsDeleted, lists, participantId);
+        logger.info(comment);
+        AuditLogService.get().addEvent(user, new AuditTypeEvent(ContainerAuditProvider.CONTAINER_AUDIT_EVENT, container.getId(), comment));
+    }
+
+    /**
+     * @return the lists in the container holding participant data, in the order they should be deleted from
+     */
+    static List<ListTarget> getTargets(Container container)
+    {
+        List<ListTarget> targets = _targetCache.get(container.getId());
+        if (targets == null)
+        {
+            targets = loadTargets(container);
+            _targetCache.put(container.getId(), targets);
+        }
+        return targets;
+    }
+
+    /**
+     * Find the lists holding participant data, ordered so child lists come before the lists they look up to
+     */
+    private static List<ListTarget> loadTargets(Container container)
+    {
+        Map<String, ListDefinition> listsByName = new HashMap<>();
+        ListService.get().getLists(container).values().forEach(list -> listsByName.put(list.getName().toLowerCase(), list));
+
+        Map<String, Integer> depths = new HashMap<>();
+        List<ListTarget> targets = new ArrayList<>();
+        for (ListDefinition list : listsByName.values())
+        {
+            Domain domain = list.getDomain();
+            if (domain == null)
+                continue;
+
+            String column;
+            if (list.getName().equalsIgnoreCase(MobileAppStudyManager.PARTICIPANT_PROPERTIES_LIST_NAME))
+                column = ENROLLMENT_TOKEN;
+            else
+                column = PARTICIPANT_ID;
+
+            if (domain.getPropertyByName(column) == null)
+                continue;   //No participant data in list
+
+            boolean hasAttachments = domain.getProperties().stream().anyMatch(p -> p.getPropertyType() == PropertyType.ATTACHMENT);
+            TableInfo storage = hasAttachments ? null : StorageProvisioner.createTableInfo(domain);
+            if (storage != null && storage.getColumn(column) == null)
+                continue;
+
+            targets.add(new ListTarget(list, column, storage, getDepth(list, listsByName, depths, 0)));
+        }
+
+        targets.sort(Comparator.comparingInt((ListTarget target) -> target.depth).reversed());
+        return Collections.unmodifiableList(targets);
+    }
+
+    /**
+     * @return the number of lists above this one in the survey hierarchy, following lookups to other lists
+     */
+    private static int getDepth(ListDefinition list, Map<String, ListDefinition> listsByName, Map<String, Integer> depths, int guard)
+    {
+        String key = list.getName().toLowerCase();
+        Integer depth = depths.get(key);
+        if (depth != null)
+            return depth;
+
+        depth = 0;
+        // Guard against lookup cycles, which a survey design won't create but a user-defined list could
+        if (guard < listsByName.size())
+        {
+            for (DomainProperty prop : list.getDomain().getProperties())
+            {
+                Lookup lookup = prop.getLookup();
+                if (lookup == null || !LISTS_SCHEMA.equalsIgnoreCase(lookup.getSchemaName()) || lookup.getQueryName() == null)
+                    continue;
+
+                ListDefinition parent = listsByName.get(lookup.getQueryName().toLowerCase());
+                if (parent != null && parent != list)
+                    depth = Math.max(depth, getDepth(parent, listsByName, depths, guard + 1) + 1);
+            }
+        }
+
+        depths.put(key, depth);
+        return depth;
+    }
+
+    static class ListTarget
+    {
+        private final ListDefinition list;
+        private final String column;
+        // Null if the list has to be deleted from through its update service
+        private final @Nullable TableInfo storage;
+        private final int depth;
+
+        private ListTarget(ListDefinition list, String column, @Nullable TableInfo storage, int depth)
+        {
+            this.list = list;
+            this.column = column;
+            this.storage = storage;
+            this.depth = depth;
+        }
+
+        String getName()
+        {
+            return list.getName();
+        }
+    }
+}
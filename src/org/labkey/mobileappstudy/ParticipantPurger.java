@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.mobileappstudy;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.ContainerManager;
+import org.labkey.api.data.DbScope;
+import org.labkey.api.data.SQLFragment;
+import org.labkey.api.data.SimpleFilter;
+import org.labkey.api.data.Sort;
+import org.labkey.api.data.SqlExecutor;
+import org.labkey.api.data.SqlSelector;
+import org.labkey.api.data.Table;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.data.TableSelector;
+import org.labkey.api.security.LimitedUser;
+import org.labkey.api.security.User;
+import org.labkey.api.security.UserManager;
+import org.labkey.api.security.roles.EditorRole;
+import org.labkey.api.security.roles.RoleManager;
+import org.labkey.api.util.ContextListener;
+import org.labkey.api.util.JobRunner;
+import org.labkey.api.util.ShutdownListener;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes withdrawn participants' data in the background, so withdrawal itself only has to mark the participant.
+ * Each purge is recorded in mobileappstudy.ParticipantPurge. Lists are cleared one at a time, each in its own short
+ * transaction that also records progress, and the participant's rows in the module's tables are removed last along
+ * with marking the purge complete.
+ *
+ * A server claims a purge before running it and renews the claim as each list is cleared, so only one server runs a
+ * purge at a time. A periodic sweep runs the purges that are pending, and takes over those whose claim has expired,
+ * e.g. when the server running it stopped. Deleting is idempotent, so a purge that is taken over starts again from
+ * the first list, with its progress counted afresh.
+ *
+ * Before any list is cleared, the participant's responses that are still waiting to be shredded are cancelled. If
+ * any are being shredded, the purge is returned to pending and the sweep tries it again later, so shredding can't add
+ * list rows after they have been deleted and a slow response doesn't hold up other purges.
+ */
+public class ParticipantPurger implements ShutdownListener
+{
+    public enum Status
+    {
+        Pending,
+        Running,
+        Complete,
+        Error
+    }
+
+    private static final Logger logger = LogManager.getLogger(ParticipantPurger.class);
+    private static final ParticipantPurger instance = new ParticipantPurger();
+    private static final int MAX_STATUS_ROWS = 100;
+    private static final int ERROR_MESSAGE_MAX_SIZE = 1000;
+    // How often to look for purges to run, e.g. those waiting for the participant's responses to finish shredding
+    private static final long SWEEP_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+    // How long a server's claim on a purge is honored without being renewed
+    private static final long CLAIM_LEASE_MS = TimeUnit.MINUTES.toMillis(10);
+
+    private final JobRunner _runner = new JobRunner("MobileAppParticipantPurge", 1);
+    private final ScheduledExecutorService _timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "MobileAppParticipantPurgeSweep");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Purges queued on this server and not yet started, so the sweep doesn't queue them again
+    private final Set<Integer> _queued = ConcurrentHashMap.newKeySet();
+
+    private ParticipantPurger()
+    {
+    }
+
+    public static ParticipantPurger get()
+    {
+        return instance;
+    }
+
+    /**
+     * Record a purge of the participant's data. Expected to be called within the withdrawal's transaction, with
+     * submit called once it commits.
+     * @return RowId of the purge
+     */
+    int create(@NotNull Container container, int participantId)
+    {
+        Map<String, Object> row = new HashMap<>();
+        row.put("ParticipantId", participantId);
+        row.put("Status", Status.Pending.name());
+        row.put("Created", new Date());
+        row.put("Container", container.getId());
+
+        row = Table.insert(null, getTable(), row);
+        return (Integer) row.get("RowId");
+    }
+
+    /**
+     * Start running a purge in the background
+     * @param purgeId RowId of the purge
+     */
+    void submit(int purgeId)
+    {
+        if (_queued.add(purgeId))
+            _runner.execute(() -> run(purgeId));
+    }
+
+    /**
+     * Start the periodic sweep, which also picks up the purges left pending or running at shutdown
+     */
+    void start()
+    {
+        ContextListener.addShutdownListener(this);
+        _timer.scheduleWithFixedDelay(this::sweep, 0, SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param container hosting the study
+     * @return the most recent purges in the container, newest first
+     */
+    public Collection<Map<String, Object>> getPurges(@NotNull Container container)
+    {
+        return new TableSelector(getTable(), SimpleFilter.createContainerFilter(container), new Sort("-RowId"))
+                .setMaxRows(MAX_STATUS_ROWS)
+                .getMapCollection();
+    }
+
+    @Override
+    public String getName()
+    {
+        return "Mobile app participant purge";
+    }
+
+    @Override
+    public void shutdownPre()
+    {
+        _timer.shutdownNow();
+    }
+
+    @Override
+    public void shutdownStarted()
+    {
+    }
+
+    /**
+     * Queue the purges that are pending or whose claim has expired
+     */
+    private void sweep()
+    {
+        try
+        {
+            SQLFragment sql = new SQLFragment("SELECT RowId FROM ").append(getTable().getSelectName())
+                    .append(" WHERE ").append(getClaimableCondition())
+                    .append(" ORDER BY RowId");
+            new SqlSelector(MobileAppStudySchema.getInstance().getSchema(), sql).getArrayList(Integer.class)
+                    .forEach(this::submit);
+        }
+        catch (Exception e)
+        {
+            // Logged rather than thrown, which would stop later sweeps
+            logger.error("Unable to check for participant purges to run.", e);
+        }
+    }
+
+    private void run(int purgeId)
+    {
+        _queued.remove(purgeId);
+        Date claimedAt = claim(purgeId);
+        if (claimedAt == null)
+            return;     // Complete, or running on another server
+
+        Map<String, Object> purge = new TableSelector(getTable()).getMap(purgeId);
+        if (purge == null)
+            return;
+
+        Container container = ContainerManager.getForId((String) purge.get("Container"));
+        int participantId = (Integer) purge.get("ParticipantId");
+        if (container == null)
+        {
+            updateStatus(purgeId, Status.Error, "Container no longer exists");
+            return;
+        }
+
+        try
+        {
+            purge(purgeId, claimedAt, container, participantId);
+        }
+        catch (Exception e)
+        {
+            logger.error(String.format("Unable to delete participant [%1$s]'s data in container [%2$s]", participantId, container.getName()), e);
+            updateStatus(purgeId, Status.Error, StringUtils.abbreviate(e.getMessage(), ERROR_MESSAGE_MAX_SIZE));
+        }
+    }
+
+    private void purge(int purgeId, Date claimedAt, Container container, int participantId) throws Exception
+    {
+        MobileAppStudyManager manager = MobileAppStudyManager.get();
+        DbScope scope = MobileAppStudySchema.getInstance().getSchema().getScope();
+
+        // Create a LimitedUser to use for checking permissions, wrapping the Guest user
+        User user = new LimitedUser(UserManager.getGuestUser(),
+                new int[0], Collections.singleton(RoleManager.getRole(EditorRole.class)), false);
+
+        // The participant is already withdrawn, so no new responses arrive. Claims that are never finished expire, and
+        // are then cancelled too, so a purge waits no longer than the shredding lease.
+        int shredding = manager.cancelShredding(participantId);
+        if (shredding > 0)
+        {
+            logger.debug(String.format("Waiting for %1$s of participant [%2$s]'s response(s) to finish shredding.", shredding, participantId));
+            new SqlExecutor(scope).execute(new SQLFragment("UPDATE ").append(getTable().getSelectName())
+                    .append(" SET Status = ?, ClaimedAt = NULL WHERE RowId = ?")
+                    .add(Status.Pending.name()).add(purgeId));
+            return;
+        }
+
+        List<ParticipantDataDeleter.ListTarget> targets = ParticipantDataDeleter.getTargets(container);
+        String enrollmentToken = manager.getEnrollmentToken(container, participantId);
+        logger.info(String.format("Deleting participant [%1$s]'s data from %2$s list(s) in container [%3$s].", participantId, targets.size(), container.getName()));
+
+        new SqlExecutor(scope).execute(new SQLFragment("UPDATE ").append(getTable().getSelectName())
+                .append(" SET Started = ?, ListsTotal = ?, ListsDone = 0, RowsDeleted = 0, ErrorMessage = NULL WHERE RowId = ?")
+                .add(new Date()).add(targets.size()).add(purgeId));
+
+        int rowsDeleted = 0;
+        int lists = 0;
+        for (ParticipantDataDeleter.ListTarget target : targets)
+        {
+            try (DbScope.Transaction transaction = scope.ensureTransaction())
+            {
+                int deleted = ParticipantDataDeleter.deleteFromList(target, container, participantId, enrollmentToken, user);
+                Date renewed = new Date();
+                SQLFragment progress = new SQLFragment("UPDATE ").append(getTable().getSelectName())
+                        .append(" SET ListsDone = ListsDone + 1, RowsDeleted = RowsDeleted + ?, ClaimedAt = ?").add(deleted).add(renewed)
+                        .append(" WHERE RowId = ? AND ClaimedAt = ?").add(purgeId).add(claimedAt);
+                if (new SqlExecutor(scope).execute(progress) == 0)
+                {
+                    // Claim expired and was taken over, leave the purge to that server
+                    logger.info(String.format("Claim on participant purge [%1$s] was taken over, stopping.", purgeId));
+                    return;
+                }
+                transaction.commit();
+
+                claimedAt = renewed;
+                rowsDeleted += deleted;
+                if (deleted > 0)
+                    lists++;
+            }
+        }
+
+        try (DbScope.Transaction transaction = scope.ensureTransaction())
+        {
+            SQLFragment complete = new SQLFragment("UPDATE ").append(getTable().getSelectName())
+                    .append(" SET Status = ?, Completed = ?, ClaimedAt = NULL").add(Status.Complete.name()).add(new Date())
+                    .append(" WHERE RowId = ? AND ClaimedAt = ?").add(purgeId).add(claimedAt);
+            if (new SqlExecutor(scope).execute(complete) == 0)
+            {
+                logger.info(String.format("Claim on participant purge [%1$s] was taken over, stopping.", purgeId));
+                return;
+            }
+            manager.deleteParticipantDataFromTables(participantId);
+            transaction.commit();
+        }
+
+        ParticipantDataDeleter.auditDeletion(container, user, participantId, rowsDeleted, lists);
+    }
+
+    /**
+     * Claim a purge for this server, if it is pending or another server's claim on it has expired
+     * @return the time of the claim, which identifies it when it is renewed, or null if the purge can't be claimed
+     */
+    @Nullable
+    private Date claim(int purgeId)
+    {
+        Date claimedAt = new Date();
+        SQLFragment sql = new SQLFragment("UPDATE ").append(getTable().getSelectName())
+                .append(" SET Status = ?, ClaimedAt = ?").add(Status.Running.name()).add(claimedAt)
+                .append(" WHERE RowId = ? AND ").add(purgeId).append(getClaimableCondition())
+                .append(" RETURNING RowId");
+        return new SqlSelector(MobileAppStudySchema.getInstance().getSchema(), sql).exists() ? claimedAt : null;
+    }
+
+    /**
+     * @return condition matching purges that are pending, or running with an expired claim
+     */
+    private SQLFragment getClaimableCondition()
+    {
+        return new SQLFragment("(Status = ? OR (Status = ? AND (ClaimedAt IS NULL OR ClaimedAt < ?)))")
+                .add(Status.Pending.name())
+                .add(Status.Running.name())
+                .add(new Date(System.currentTimeMillis() - CLAIM_LEASE_MS));
+    }
+
+    private void updateStatus(int purgeId, Status status, String errorMessage)
+    {
+        new SqlExecutor(MobileAppStudySchema.getInstance().getSchema()).execute(new SQLFragment("UPDATE ").append(getTable().getSelectName())
+                .append(" SET Status = ?, ErrorMessage = ?, ClaimedAt = NULL WHERE RowId = ?")
+                .add(status.name()).add(errorMessage).add(purgeId));
+    }
+
+    private TableInfo getTable()
+    {
+        return MobileAppStudySchema.getInstance().getTableInfoParticipantPurge();
+    }
+}
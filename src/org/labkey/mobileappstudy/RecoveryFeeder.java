@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.mobileappstudy;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.labkey.api.util.ContextListener;
+import org.labkey.api.util.ShutdownListener;
+import org.labkey.mobileappstudy.data.SurveyResponse;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feeds responses left pending by a shutdown or crash to the shredder. Starts shortly after startup rather than
+ * during it, and works through the pending responses of each study activity version a chunk at a time, moving
+ * round-robin between them. A chunk is only fed when its container has few items queued, so recovery keeps the
+ * shredder busy without crowding out newly submitted responses or flooding the heap.
+ *
+ * Only responses that were pending when recovery started are fed, anything submitted since is already queued. Each
+ * chunk is claimed before it is queued, so servers recovering at the same time split the work between them and a
+ * response is never queued twice, and the claim is renewed when the chunk is shredded. After startup,
+ * a periodic sweep feeds responses that have sat pending for a while or whose claim has expired, which picks up work
+ * lost when another server crashed. The timer stops at shutdown; anything claimed but not yet shredded is claimable
+ * again once its claim expires.
+ */
+public class RecoveryFeeder implements ShutdownListener
+{
+    public enum State
+    {
+        Waiting,
+        Running,
+        Complete,
+        Error
+    }
+
+    private static final Logger logger = LogManager.getLogger(RecoveryFeeder.class);
+    private static final RecoveryFeeder instance = new RecoveryFeeder();
+
+    private static final long STARTUP_DELAY_SECONDS = 30;
+    private static final long SWEEP_INTERVAL_MS = MobileAppStudyManager.SHREDDING_CLAIM_LEASE_MS;
+    // Responses pending for less than this are presumably still queued on the server that received them
+    private static final long SWEEP_MIN_AGE_MS = TimeUnit.MINUTES.toMillis(10);
+    private static final long POLL_MS = 500;
+    private static final int CHUNK_SIZE = 100;
+    // Chunks queued per container before recovery waits, small next to the shredder's limit for new submissions
+    private static final int MAX_QUEUED_CHUNKS = 10;
+
+    private final ScheduledExecutorService _timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "MobileAppShredderRecovery");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile State _state = State.Waiting;
+    private volatile Date _started;
+    private volatile Date _completed;
+    private volatile long _pendingAtStart;
+    private volatile long _fed;
+    private volatile int _activityVersions;
+    private volatile int _activityVersionsDone;
+
+    private RecoveryFeeder()
+    {
+    }
+
+    public static RecoveryFeeder get()
+    {
+        return instance;
+    }
+
+    void start()
+    {
+        ContextListener.addShutdownListener(this);
+        long delay = TimeUnit.SECONDS.toMillis(STARTUP_DELAY_SECONDS);
+        _timer.schedule(() -> feed(new Date()), delay, TimeUnit.MILLISECONDS);
+        _timer.scheduleWithFixedDelay(() -> feed(new Date(System.currentTimeMillis() - SWEEP_MIN_AGE_MS)),
+                delay + SWEEP_INTERVAL_MS, SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String getName()
+    {
+        return "Mobile app shredder recovery";
+    }
+
+    @Override
+    public void shutdownPre()
+    {
+        _timer.shutdownNow();
+    }
+
+    @Override
+    public void shutdownStarted()
+    {
+    }
+
+    /**
+     * @return the progress of recovery, for display to admins
+     */
+    public Map<String, Object> getStatus()
+    {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("state", _state.name());
+        status.put("started", _started);
+        status.put("completed", _completed);
+        status.put("pendingAtStart", _pendingAtStart);
+        status.put("fed", _fed);
+        status.put("activityVersions", _activityVersions);
+        status.put("activityVersionsDone", _activityVersionsDone);
+        return status;
+    }
+
+    /**
+     * @param createdBefore only feed responses submitted before this time
+     */
+    private void feed(Date createdBefore)
+    {
+        MobileAppStudyManager manager = MobileAppStudyManager.get();
+        ShredderScheduler shredder = ShredderScheduler.get();
+
+        try
+        {
+            Integer maxRowId = manager.getMaxPendingRowId(createdBefore);
+            if (maxRowId != null)
+            {
+                _state = State.Running;
+                _started = new Date();
+                _completed = null;
+                _fed = 0;
+                _activityVersionsDone = 0;
+                _pendingAtStart = manager.countPendingResponses(maxRowId);
+                List<Cursor> cursors = new ArrayList<>();
+                manager.getPendingResponseBatchKeys(null).forEach(key -> cursors.add(new Cursor(key)));
+                _activityVersions = cursors.size();
+                logger.info(String.format("Recovering %1$s pending response(s) for %2$s activity version(s).", _pendingAtStart, _activityVersions));
+
+                while (!cursors.isEmpty())
+                {
+                    boolean fed = false;
+                    Iterator<Cursor> it = cursors.iterator();
+                    while (it.hasNext())
+                    {
+                        Cursor cursor = it.next();
+                        if (shredder.getQueueDepth(cursor.key.getContainer()) >= MAX_QUEUED_CHUNKS)
+                            continue;
+
+                        List<SurveyResponse> chunk = manager.claimPendingResponses(cursor.key, cursor.lastRowId, maxRowId, CHUNK_SIZE);
+                        if (!chunk.isEmpty())
+                        {
+                            cursor.lastRowId = chunk.get(chunk.size() - 1).getRowId();
+                            shredder.submit(cursor.key.getContainer(), () -> manager.shredSurveyResponses(chunk, null));
+                            _fed += chunk.size();
+                            fed = true;
+                        }
+                        if (chunk.size() < CHUNK_SIZE)
+                        {
+                            it.remove();
+                            _activityVersionsDone++;
+                        }
+                    }
+
+                    if (!fed && !cursors.isEmpty())
+                        Thread.sleep(POLL_MS);
+                }
+
+                _state = State.Complete;
+                _completed = new Date();
+                logger.info(String.format("Recovery fed %1$s pending response(s) to the shredder.", _fed));
+            }
+        }
+        catch (InterruptedException e)
+        {
+            _state = State.Error;
+            _completed = new Date();
+            Thread.currentThread().interrupt();
+        }
+        catch (Exception e)
+        {
+            // Anything not fed is claimable again once its claim expires, so the next sweep picks it up
+            _state = State.Error;
+            _completed = new Date();
+            logger.error("Recovery of pending responses failed.", e);
+        }
+    }
+
+    private static class Cursor
+    {
+        private final SurveyResponse key;
+        private int lastRowId = 0;
+
+        private Cursor(SurveyResponse key)
+        {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.mobileappstudy;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.ContainerManager;
+import org.labkey.api.util.JobRunner;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Schedules response shredding work. Each study container gets its own bounded queue and the shredder threads drain
+ * those queues round-robin, so a survey campaign in one study can't starve the others or grow the heap without limit.
+ */
+public class ShredderScheduler
+{
+    private static final Logger logger = LogManager.getLogger(ShredderScheduler.class);
+    private static final ShredderScheduler instance = new ShredderScheduler();
+
+    private static final int THREAD_COUNT = 10;
+    public static final int MAX_QUEUE_DEPTH = 1000;
+    public static final int RETRY_AFTER_SECONDS = 30;
+
+    private final Executor _runner;
+
+    // Guarded by this. Queued work keyed by container id, and the round-robin order of containers with queued work.
+    private final Map<String, Deque<Runnable>> _queues = new HashMap<>();
+    private final Deque<String> _ready = new ArrayDeque<>();
+
+    private long _accepted = 0;
+    private long _rejected = 0;
+    private long _completed = 0;
+
+    private ShredderScheduler()
+    {
+        this(new JobRunner("MobileAppResponseShredder", THREAD_COUNT)::execute);
+    }
+
+    /**
+     * @param runner executes the shredder threads' work, e.g. directly in tests
+     */
+    ShredderScheduler(@NotNull Executor runner)
+    {
+        _runner = runner;
+    }
+
+    public static ShredderScheduler get()
+    {
+        return instance;
+    }
+
+    /**
+     * Check if the study's queue can take more work. Used to turn away new submissions before they are stored.
+     * @param container hosting the study
+     * @return true if the queue for the container is below its limit
+     */
+    public synchronized boolean hasCapacity(@NotNull Container container)
+    {
+        return getQueueDepth(container.getId()) < MAX_QUEUE_DEPTH;
+    }
+
+    public int getQueueDepth(@NotNull Container container)
+    {
+        return getQueueDepth(container.getId());
+    }
+
+    private synchronized int getQueueDepth(String containerId)
+    {
+        Deque<Runnable> queue = _queues.get(containerId);
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * Add work to the container's queue if it has room
+     * @param container hosting the study
+     * @param run shredding work to execute
+     * @return true if the work was queued, false if the container's queue is full
+     */
+    public boolean offer(@NotNull Container container, @NotNull Runnable run)
+    {
+        boolean queued = offer(container.getId(), run);
+        if (!queued)
+            logger.warn(String.format("Shredder queue for container [%1$s] is full. Rejecting response.", container.getName()));
+        return queued;
+    }
+
+    private boolean offer(String containerId, Runnable run)
+    {
+        synchronized (this)
+        {
+            if (getQueueDepth(containerId) >= MAX_QUEUE_DEPTH)
+            {
+                _rejected++;
+                return false;
+            }
+            add(containerId, run);
+        }
+
+        _runner.execute(this::runNext);
+        return true;
+    }
+
+    /**
+     * Add work to the container's queue regardless of its limit. For responses that are already stored and must not be
+     * dropped, e.g. pending responses found at startup or responses being reprocessed.
+     * @param container hosting the study
+     * @param run shredding work to execute
+     */
+    public void submit(@NotNull Container container, @NotNull Runnable run)
+    {
+        submit(container.getId(), run);
+    }
+
+    private void submit(String containerId, Runnable run)
+    {
+        synchronized (this)
+        {
+            add(containerId, run);
+        }
+
+        _runner.execute(this::runNext);
+    }
+
+    private void add(String containerId, Runnable run)
+    {
+        Deque<Runnable> queue = _queues.computeIfAbsent(containerId, id -> new ArrayDeque<>());
+        if (queue.isEmpty())
+            _ready.addLast(containerId);
+        queue.addLast(run);
+        _accepted++;
+    }
+
+    /**
+     * Executed by the shredder threads. There is one of these for every queued item, each takes the next item from
+     * whichever container is at the head of the round-robin order.
+     */
+    private void runNext()
+    {
+        Runnable run;
+        synchronized (this)
+        {
+            String containerId = _ready.pollFirst();
+            if (containerId == null)
+                return;
+
+            Deque<Runnable> queue = _queues.get(containerId);
+            run = queue.pollFirst();
+            if (queue.isEmpty())
+                _queues.remove(containerId);
+            else
+                _ready.addLast(containerId);
+        }
+
+        try
+        {
+            run.run();
+        }
+        catch (Throwable t)
+        {
+            logger.error("Unexpected error shredding response.", t);
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                _completed++;
+            }
+        }
+    }
+
+    /**
+     * Get queue metrics for monitoring
+     * @return Map of overall counts and the current queue depth of each container with queued work
+     */
+    public synchronized Map<String, Object> getStatistics()
+    {
+        Map<String, Object> depths = new LinkedHashMap<>();
+        for (String containerId : _ready)
+        {
+            Container c = ContainerManager.getForId(containerId);
+            depths.put(c == null ? containerId : c.getPath(), _queues.get(containerId).size());
+        }
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("threadCount", THREAD_COUNT);
+        stats.put("maxQueueDepth", MAX_QUEUE_DEPTH);
+        stats.put("queued", _queues.values().stream().mapToInt(Deque::size).sum());
+        stats.put("accepted", _accepted);
+        stats.put("rejected", _rejected);
+        stats.put("completed", _completed);
+        stats.put("queueDepths", depths);
+        return stats;
+    }
+
+    public static class TestCase extends Assert
+    {
+        private final List<Runnable> _tasks = new ArrayList<>();
+        private final ShredderScheduler _scheduler = new ShredderScheduler(_tasks::add);
+
+        @Test
+        public void testRoundRobin()
+        {
+            List<String> ran = new ArrayList<>();
+            _scheduler.offer("A", () -> ran.add("A1"));
+            _scheduler.offer("A", () -> ran.add("A2"));
+            _scheduler.offer("A", () -> ran.add("A3"));
+            _scheduler.offer("B", () -> ran.add("B1"));
+            _scheduler.submit("C", () -> ran.add("C1"));
+            assertEquals(3, _scheduler.getQueueDepth("A"));
+
+            runTasks();
+            assertEquals(List.of("A1", "B1", "C1", "A2", "A3"), ran);
+            assertEquals(0, _scheduler.getQueueDepth("A"));
+        }
+
+        @Test
+        public void testQueueLimit()
+        {
+            for (int i = 0; i < MAX_QUEUE_DEPTH; i++)
+                assertTrue(_scheduler.offer("A", () -> {}));
+
+            assertFalse("Full queue should reject work", _scheduler.offer("A", () -> {}));
+            assertTrue("Other containers' queues are independent", _scheduler.offer("B", () -> {}));
+
+            // Stored responses are queued regardless of the limit
+            _scheduler.submit("A", () -> {});
+            assertEquals(MAX_QUEUE_DEPTH + 1, _scheduler.getQueueDepth("A"));
+
+            runTasks();
+            assertEquals(0, _scheduler.getQueueDepth("A"));
+            assertTrue(_scheduler.offer("A", () -> {}));
+        }
+
+        @Test
+        public void testFailureDoesNotStopQueue()
+        {
+            List<String> ran = new ArrayList<>();
+            _scheduler.offer("A", () -> { throw new IllegalStateException("Expected test failure"); });
+            _scheduler.offer("A", () -> ran.add("A2"));
+
+            runTasks();
+            assertEquals(List.of("A2"), ran);
+            assertEquals(2L, _scheduler._completed);
+        }
+
+        private void runTasks()
+        {
+            while (!_tasks.isEmpty())
+                _tasks.remove(0).run();
+        }
+    }
+}
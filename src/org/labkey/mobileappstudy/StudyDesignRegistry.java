@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.mobileappstudy;
+
+import org.jetbrains.annotations.NotNull;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.SQLFragment;
+import org.labkey.api.data.SimpleFilter;
+import org.labkey.api.data.SqlExecutor;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.data.TableSelector;
+import org.labkey.api.query.FieldKey;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the survey designs that have been applied to each study, so responses for a known activity version can skip
+ * the design provider entirely. Design updates are serialized per study rather than across the server.
+ *
+ * Applied versions are recorded in mobileappstudy.AppliedDesignVersion, which is the source of truth shared by all
+ * servers. The in-memory set is warmed from it at startup and filled in as designs are applied or found in the table.
+ * A version whose design failed is marked invalid in the table rather than removed, so it isn't taken as known from
+ * earlier responses. Each server checks a version it holds against the table again once it has held it for a
+ * minute, so a version invalidated on another server is dropped within that time.
+ */
+public class StudyDesignRegistry
+{
+    private static final StudyDesignRegistry instance = new StudyDesignRegistry();
+
+    // How long a participant properties design check is trusted before the provider is asked again
+    private static final long PARTICIPANT_PROPERTIES_CHECK_INTERVAL_MS = 5 * 60 * 1000;
+    // How long an applied design version is trusted before the table is checked again
+    private static final long SURVEY_RECHECK_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private final Map<String, Object> _locks = new ConcurrentHashMap<>();
+    // Applied design versions, and when each was last confirmed against the table
+    private final Map<String, Long> _appliedSurveys = new ConcurrentHashMap<>();
+    private final Map<String, Long> _participantPropertiesChecked = new ConcurrentHashMap<>();
+
+    private StudyDesignRegistry()
+    {
+    }
+
+    public static StudyDesignRegistry get()
+    {
+        return instance;
+    }
+
+    /**
+     * @param container hosting the study
+     * @return the object to synchronize design updates for the study on
+     */
+    @NotNull
+    Object getLock(@NotNull Container container)
+    {
+        return _locks.computeIfAbsent(container.getId(), id -> new Object());
+    }
+
+    /**
+     * Load the applied design versions of all studies
+     */
+    void warm()
+    {
+        TableInfo table = MobileAppStudySchema.getInstance().getTableInfoAppliedDesignVersion();
+        long now = System.currentTimeMillis();
+        new TableSelector(table, table.getColumns("Container", "ActivityId", "SurveyVersion"), new SimpleFilter(FieldKey.fromParts("Invalid"), false), null).forEachMap(row ->
+            _appliedSurveys.put(getSurveyKey((String) row.get("Container"), (String) row.get("ActivityId"), (String) row.get("SurveyVersion")), now)
+        );
+    }
+
+    /**
+     * Check the in-memory set for an applied design version. This is the hot path for every response, the table is
+     * only checked when the version hasn't been confirmed for a while.
+     */
+    public boolean isSurveyApplied(@NotNull Container container, @NotNull String activityId, @NotNull String version)
+    {
+        String key = getSurveyKey(container, activityId, version);
+        Long confirmed = _appliedSurveys.get(key);
+        if (confirmed == null)
+            return false;
+
+        if (System.currentTimeMillis() - confirmed <= SURVEY_RECHECK_INTERVAL_MS)
+            return true;
+
+        if (isSurveyRecorded(container, activityId, version))
+        {
+            _appliedSurveys.put(key, System.currentTimeMillis());
+            return true;
+        }
+
+        // Invalidated on another server
+        _appliedSurveys.remove(key, confirmed);
+        return false;
+    }
+
+    public void setSurveyApplied(@NotNull Container container, @NotNull String activityId, @NotNull String version)
+    {
+        _appliedSurveys.put(getSurveyKey(container, activityId, version), System.currentTimeMillis());
+    }
+
+    /**
+     * Check the table for a valid design version, e.g. one applied by another server since this one started
+     */
+    boolean isSurveyRecorded(@NotNull Container container, @NotNull String activityId, @NotNull String version)
+    {
+        SimpleFilter filter = getSurveyFilter(container, activityId, version);
+        filter.addCondition(FieldKey.fromParts("Invalid"), false);
+        return new TableSelector(MobileAppStudySchema.getInstance().getTableInfoAppliedDesignVersion(), filter, null).exists();
+    }
+
+    /**
+     * @return true if the design version was invalidated and hasn't been applied since
+     */
+    boolean isSurveyInvalidated(@NotNull Container container, @NotNull String activityId, @NotNull String version)
+    {
+        SimpleFilter filter = getSurveyFilter(container, activityId, version);
+        filter.addCondition(FieldKey.fromParts("Invalid"), true);
+        return new TableSelector(MobileAppStudySchema.getInstance().getTableInfoAppliedDesignVersion(), filter, null).exists();
+    }
+
+    /**
+     * Record a design version as applied. Expected to be called within the transaction applying the design.
+     */
+    void recordSurveyApplied(@NotNull Container container, @NotNull String activityId, @NotNull String version)
+    {
+        MobileAppStudySchema schema = MobileAppStudySchema.getInstance();
+        SQLFragment sql = new SQLFragment("INSERT INTO ").append(schema.getTableInfoAppliedDesignVersion().getSelectName())
+                .append(" (ActivityId, SurveyVersion, Created, Container) VALUES (?, ?, ?, ?)")
+                .add(activityId).add(version).add(new Date()).add(container)
+                .append(" ON CONFLICT (Container, ActivityId, SurveyVersion) DO UPDATE SET Invalid = FALSE, Created = EXCLUDED.Created");
+        new SqlExecutor(schema.getSchema()).execute(sql);
+    }
+
+    /**
+     * Mark a design version invalid, so the next response for it will check and apply the design again. Used when
+     * storing responses fails after their design was taken as applied.
+     *
+     * The version is removed from this server's set right away. Other servers drop it when they next check it against
+     * the table, within SURVEY_RECHECK_INTERVAL_MS.
+     */
+    public void invalidateSurvey(@NotNull Container container, @NotNull String activityId, @NotNull String version)
+    {
+        _appliedSurveys.remove(getSurveyKey(container, activityId, version));
+
+        MobileAppStudySchema schema = MobileAppStudySchema.getInstance();
+        SQLFragment sql = new SQLFragment("INSERT INTO ").append(schema.getTableInfoAppliedDesignVersion().getSelectName())
+                .append(" (ActivityId, SurveyVersion, Invalid, Created, Container) VALUES (?, ?, TRUE, ?, ?)")
+                .add(activityId).add(version).add(new Date()).add(container)
+                .append(" ON CONFLICT (Container, ActivityId, SurveyVersion) DO UPDATE SET Invalid = TRUE");
+        new SqlExecutor(schema.getSchema()).execute(sql);
+    }
+
+    /**
+     * @param container hosting the study
+     * @return true if the study's participant properties design hasn't been checked recently
+     */
+    public boolean isParticipantPropertiesCheckDue(@NotNull Container container)
+    {
+        Long checked = _participantPropertiesChecked.get(container.getId());
+        return checked == null || System.currentTimeMillis() - checked > PARTICIPANT_PROPERTIES_CHECK_INTERVAL_MS;
+    }
+
+    public void setParticipantPropertiesChecked(@NotNull Container container)
+    {
+        _participantPropertiesChecked.put(container.getId(), System.currentTimeMillis());
+    }
+
+    /**
+     * Forget everything known about the study's designs, e.g. when its container is deleted
+     * @param container hosting the study
+     */
+    public void clear(@NotNull Container container)
+    {
+        String prefix = container.getId() + "|";
+        _appliedSurveys.keySet().removeIf(key -> key.startsWith(prefix));
+        _participantPropertiesChecked.remove(container.getId());
+    }
+
+    private SimpleFilter getSurveyFilter(Container container, String activityId, String version)
+    {
+        SimpleFilter filter = SimpleFilter.createContainerFilter(container);
+        filter.addCondition(FieldKey.fromParts("ActivityId"), activityId);
+        filter.addCondition(FieldKey.fromParts("SurveyVersion"), version);
+        return filter;
+    }
+
+    private String getSurveyKey(Container container, String activityId, String version)
+    {
+        return getSurveyKey(container.getId(), activityId, version);
+    }
+
+    private String getSurveyKey(String containerId, String activityId, String version)
+    {
+        return containerId + "|" + activityId + "|" + version;
+    }
+}
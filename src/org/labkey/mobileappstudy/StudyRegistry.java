@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.mobileappstudy;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.labkey.api.cache.Cache;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.SimpleFilter;
+import org.labkey.api.data.Table;
+import org.labkey.api.data.TableSelector;
+import org.labkey.api.query.FieldKey;
+import org.labkey.api.util.TestContext;
+import org.labkey.mobileappstudy.data.MobileAppStudy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Holds every study in memory, indexed by container, by RowId and by short name, so study lookups on the enrollment,
+ * shredding and forwarding paths don't query mobileappstudy.Study. The registry is loaded on first use and updated as
+ * studies are saved or their containers purged. Indexes are replaced as a whole on each change, so readers always see
+ * a consistent set without locking.
+ *
+ * Changes made by other servers are picked up when the registry is reloaded, every RELOAD_INTERVAL_MS. Until then
+ * another server may still see a study's old short name, or accept responses for a study whose collection was just
+ * disabled. A lookup that finds nothing is checked against the table, so a study created on another server is found
+ * right away. Lookups that find nothing there either, e.g. for folders without a study or unknown short names on the
+ * enrollment path, are remembered for the same interval so they don't query the table each time.
+ *
+ * Studies are returned as copies, since callers such as the study setup web part modify the objects they get.
+ */
+public class StudyRegistry
+{
+    private static final StudyRegistry instance = new StudyRegistry();
+    // Bounds how long a change made on another server goes unseen. The table holds one row per study, so reloading
+    // it this often costs little.
+    private static final long RELOAD_INTERVAL_MS = TimeUnit.SECONDS.toMillis(30);
+
+    // Lookups recently found in neither the indexes nor the table
+    private final Cache<String, Boolean> _misses = CacheManager.getCache(10000, RELOAD_INTERVAL_MS, "Mobile app studies not found");
+    private volatile Indexes _indexes;
+
+    private StudyRegistry()
+    {
+    }
+
+    public static StudyRegistry get()
+    {
+        return instance;
+    }
+
+    /**
+     * @param container the container in question
+     * @return the container's study, or null if there is no such study
+     */
+    @Nullable
+    public MobileAppStudy getStudy(@NotNull Container container)
+    {
+        MobileAppStudy study = getIndexes().byContainer.get(container.getId());
+        if (study == null)
+            study = lookup("Container:" + container.getId(), SimpleFilter.createContainerFilter(container)).stream().findFirst().orElse(null);
+        return study == null ? null : new MobileAppStudy(study);
+    }
+
+    /**
+     * @param rowId of the study
+     * @return the study, or null if there is no such study
+     */
+    @Nullable
+    public MobileAppStudy getStudy(int rowId)
+    {
+        MobileAppStudy study = getIndexes().byRowId.get(rowId);
+        if (study == null)
+            study = lookup("RowId:" + rowId, new SimpleFilter(FieldKey.fromParts("RowId"), rowId)).stream().findFirst().orElse(null);
+        return study == null ? null : new MobileAppStudy(study);
+    }
+
+    /**
+     * @param shortName identifier for the study, in any case
+     * @return the studies with the short name, or an empty list if there are none
+     */
+    @NotNull
+    public List<MobileAppStudy> getStudies(@NotNull String shortName)
+    {
+        List<MobileAppStudy> studies = getIndexes().byShortName.get(shortName.toUpperCase());
+        if (studies == null)
+            studies = lookup("ShortName:" + shortName.toUpperCase(), new SimpleFilter(FieldKey.fromParts("ShortName"), shortName.toUpperCase()));
+        return studies.stream()
+                .map(MobileAppStudy::new)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return the ids of all containers with a study
+     */
+    @NotNull
+    public List<String> getContainerIds()
+    {
+        return new ArrayList<>(getIndexes().byContainer.keySet());
+    }
+
+    /**
+     * Add or replace a study after it has been saved
+     */
+    synchronized void put(@NotNull MobileAppStudy study)
+    {
+        Indexes indexes = getIndexes();
+        Map<String, MobileAppStudy> byContainer = new HashMap<>(indexes.byContainer);
+        byContainer.put(study.getContainer().getId(), new MobileAppStudy(study));
+        _indexes = new Indexes(byContainer, indexes.loaded);
+        _misses.clear();
+    }
+
+    /**
+     * Drop the container's study, e.g. when the container is purged
+     */
+    synchronized void remove(@NotNull Container container)
+    {
+        Indexes indexes = getIndexes();
+        Map<String, MobileAppStudy> byContainer = new HashMap<>(indexes.byContainer);
+        if (byContainer.remove(container.getId()) != null)
+            _indexes = new Indexes(byContainer, indexes.loaded);
+        _misses.clear();
+    }
+
+    /**
+     * Query the table for studies missing from the indexes, and add any that are found
+     * @param missKey identifies the lookup, so a lookup that found nothing isn't repeated for a while
+     */
+    private List<MobileAppStudy> lookup(String missKey, SimpleFilter filter)
+    {
+        if (_misses.get(missKey) != null)
+            return Collections.emptyList();
+
+        List<MobileAppStudy> studies = new ArrayList<>();
+        for (MobileAppStudy study : new TableSelector(MobileAppStudySchema.getInstance().getTableInfoStudy(), filter, null).getArrayList(MobileAppStudy.class))
+        {
+            if (study.getContainer() != null)
+            {
+                put(study);
+                studies.add(study);
+            }
+        }
+        if (studies.isEmpty())
+            _misses.put(missKey, Boolean.TRUE);
+        return studies;
+    }
+
+    private Indexes getIndexes()
+    {
+        Indexes indexes = _indexes;
+        if (indexes == null || System.currentTimeMillis() - indexes.loaded > RELOAD_INTERVAL_MS)
+        {
+            synchronized (this)
+            {
+                indexes = _indexes;
+                if (indexes == null || System.currentTimeMillis() - indexes.loaded > RELOAD_INTERVAL_MS)
+                {
+                    indexes = load();
+                    _indexes = indexes;
+                }
+            }
+        }
+        return indexes;
+    }
+
+    private Indexes load()
+    {
+        Map<String, MobileAppStudy> byContainer = new HashMap<>();
+        for (MobileAppStudy study : new TableSelector(MobileAppStudySchema.getInstance().getTableInfoStudy()).getArrayList(MobileAppStudy.class))
+        {
+            // Skip studies whose container no longer exists
+            if (study.getContainer() != null)
+                byContainer.put(study.getContainer().getId(), study);
+        }
+
+        return new Indexes(byContainer, System.currentTimeMillis());
+    }
+
+    private static class Indexes
+    {
+        private final Map<String, MobileAppStudy> byContainer;
+        private final Map<Integer, MobileAppStudy> byRowId;
+        private final Map<String, List<MobileAppStudy>> byShortName;
+        private final long loaded;
+
+        private Indexes(Map<String, MobileAppStudy> byContainer, long loaded)
+        {
+            this.byContainer = Collections.unmodifiableMap(byContainer);
+            this.byRowId = byContainer.values().stream()
+                    .collect(Collectors.collectingAndThen(Collectors.toMap(MobileAppStudy::getRowId, study -> study), Collections::unmodifiableMap));
+            this.byShortName = byContainer.values().stream()
+                    .collect(Collectors.collectingAndThen(Collectors.groupingBy(study -> study.getShortName().toUpperCase()), Collections::unmodifiableMap));
+            this.loaded = loaded;
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        private static final String FOLDER_NAME = "StudyRegistryTest";
+
+        private final StudyRegistry _registry = StudyRegistry.get();
+        private Container _container;
+        private String _shortName;
+
+        @Before
+        public void setUp()
+        {
+            _container = TestFolder.create(FOLDER_NAME);
+            _shortName = "REGISTRYTEST" + RandomStringUtils.randomAlphanumeric(6).toUpperCase();
+        }
+
+        @After
+        public void tearDown()
+        {
+            TestFolder.delete(_container);
+        }
+
+        @Test
+        public void testSavedStudy()
+        {
+            MobileAppStudy saved = MobileAppStudyManager.get().insertOrUpdateStudy(_shortName, true, _container, TestContext.get().getUser());
+            assertTrue(_registry.getContainerIds().contains(_container.getId()));
+            assertStudy(_registry.getStudy(_container));
+            assertStudy(_registry.getStudy(saved.getRowId()));
+            assertEquals(1, _registry.getStudies(_shortName.toLowerCase()).size());
+            assertStudy(_registry.getStudies(_shortName.toLowerCase()).get(0));
+
+            // Callers get copies, so changing one doesn't change the registry
+            _registry.getStudy(_container).setShortName("CHANGED");
+            assertStudy(_registry.getStudy(_container));
+
+            MobileAppStudyManager.get().insertOrUpdateStudy(_shortName + "2", true, _container, TestContext.get().getUser());
+            assertEquals(_shortName + "2", _registry.getStudy(_container).getShortName());
+            assertTrue(_registry.getStudies(_shortName).isEmpty());
+        }
+
+        @Test
+        public void testStudyMissingFromRegistry()
+        {
+            // As if the study was saved on another server
+            MobileAppStudy study = new MobileAppStudy();
+            study.setShortName(_shortName);
+            study.setCollectionEnabled(true);
+            study.setContainer(_container);
+            study = Table.insert(TestContext.get().getUser(), MobileAppStudySchema.getInstance().getTableInfoStudy(), study);
+            _registry.remove(_container);
+            assertFalse(_registry.getContainerIds().contains(_container.getId()));
+
+            assertStudy(_registry.getStudy(study.getRowId()));
+            assertTrue("Study found in the table should be added", _registry.getContainerIds().contains(_container.getId()));
+
+            _registry.remove(_container);
+            assertStudy(_registry.getStudies(_shortName).get(0));
+            _registry.remove(_container);
+            assertStudy(_registry.getStudy(_container));
+        }
+
+        @Test
+        public void testMissRemembered()
+        {
+            assertNull(_registry.getStudy(_container));
+            assertTrue(_registry.getStudies(_shortName).isEmpty());
+
+            // Saved on another server after the miss, so not found until the miss expires or the registry changes
+            MobileAppStudy study = new MobileAppStudy();
+            study.setShortName(_shortName);
+            study.setCollectionEnabled(true);
+            study.setContainer(_container);
+            Table.insert(TestContext.get().getUser(), MobileAppStudySchema.getInstance().getTableInfoStudy(), study);
+            assertNull(_registry.getStudy(_container));
+            assertTrue(_registry.getStudies(_shortName).isEmpty());
+
+            _registry.remove(_container);
+            assertStudy(_registry.getStudy(_container));
+            assertStudy(_registry.getStudies(_shortName).get(0));
+        }
+
+        @Test
+        public void testPurgedStudy()
+        {
+            MobileAppStudy saved = MobileAppStudyManager.get().insertOrUpdateStudy(_shortName, true, _container, TestContext.get().getUser());
+            TestFolder.delete(_container);
+
+            assertFalse(_registry.getContainerIds().contains(_container.getId()));
+            assertNull(_registry.getStudy(_container));
+            assertNull(_registry.getStudy(saved.getRowId()));
+            assertTrue(_registry.getStudies(_shortName).isEmpty());
+            _container = null;
+        }
+
+        private void assertStudy(@Nullable MobileAppStudy study)
+        {
+            assertNotNull(study);
+            assertEquals(_shortName, study.getShortName());
+            assertEquals(_container, study.getContainer());
+        }
+    }
+}
@@ -20,11 +20,16 @@ import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
 import org.labkey.api.data.Container;
 import org.labkey.api.data.JdbcType;
 import org.labkey.api.data.PropertyStorageSpec;
 import org.labkey.api.exp.ChangePropertyDescriptorException;
 import org.labkey.api.exp.list.ListDefinition;
+import org.labkey.api.exp.list.ListService;
 import org.labkey.api.exp.property.Domain;
 import org.labkey.api.exp.property.DomainProperty;
 import org.labkey.api.exp.property.Lookup;
@@ -33,6 +38,7 @@ import org.labkey.api.security.User;
 import org.labkey.api.security.UserManager;
 import org.labkey.api.security.roles.RoleManager;
 import org.labkey.api.security.roles.SubmitterRole;
+import org.labkey.api.util.TestContext;
 import org.labkey.mobileappstudy.data.MobileAppStudy;
 import org.labkey.mobileappstudy.data.SurveyResponse;
 import org.labkey.mobileappstudy.surveydesign.InvalidDesignException;
@@ -41,6 +47,7 @@ import org.labkey.mobileappstudy.surveydesign.SurveyDesignProvider;
 import org.labkey.mobileappstudy.surveydesign.SurveyStep;
 import org.labkey.mobileappstudy.surveydesign.SurveyStep.StepResultType;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
@@ -89,6 +96,28 @@ public class SurveyDesignProcessor extends DynamicListProcessor
             }
         }
 
+        /**
+         * @return true if the domain already has all the properties ensureStandardProperties would add
+         */
+        public static boolean hasStandardProperties(Domain domain, String parentListName) throws InvalidDesignException
+        {
+            if (domain == null)
+                throw new InvalidDesignException("Invalid list domain");
+
+            for (StandardProperties val : values())
+            {
+                //ParentId is only added for sub-lists
+                if (val == ParentId && StringUtils.isBlank(parentListName))
+                    continue;
+
+                String key = val.key == ParentId.key ? getParentListKey(parentListName) : val.key;
+                if (domain.getPropertyByName(key) == null)
+                    return false;
+            }
+
+            return true;
+        }
+
         /**
          * Add properties that are common to the list implementation and any special aspects of that property like Lookups
          * @param container hosting the list
@@ -159,9 +188,14 @@ public class SurveyDesignProcessor extends DynamicListProcessor
         applySurveyUpdate(study.getContainer(), insertUser, listDef.getDomain(), design.getSteps(), design.getSurveyName(), "");
     }
 
+    /**
+     * Apply the steps to the list and its sub-lists. Each list's domain is compared with its steps first, and only
+     * saved if they would change it, since a save means DDL, auditing and cache invalidation even when nothing changed.
+     */
     private void applySurveyUpdate(Container container, User user, Domain listDomain, List<SurveyStep> steps, String listName, String parentListName) throws InvalidDesignException
     {
-        StandardProperties.ensureStandardProperties(container, listDomain, parentListName);
+        boolean changed = !StandardProperties.hasStandardProperties(listDomain, parentListName);
+        List<SurveyStep> fieldSteps = new ArrayList<>();
 
         try
         {
@@ -194,14 +228,26 @@ public class SurveyDesignProcessor extends DynamicListProcessor
                     case UNKNOWN:
                         throw new InvalidDesignException(String.format(LogMessageFormats.INVALID_RESULT_TYPE, step.getKey()));
                     default:
-                        ensureStepProperty(listDomain, step);
+                        changed |= isStepPropertyChanged(listDomain, step);
+                        fieldSteps.add(step);
                         break;
                 }
 
                 fieldKeys.add(step.getKey());
             }
 
-            listDomain.save(user);
+            if (changed)
+            {
+                StandardProperties.ensureStandardProperties(container, listDomain, parentListName);
+                for (SurveyStep step : fieldSteps)
+                    ensureStepProperty(listDomain, step);
+
+                listDomain.save(user);
+            }
+            else
+            {
+                logger.debug(String.format(LogMessageFormats.LIST_UNCHANGED, listName));
+            }
             logger.info(LogMessageFormats.END_SURVEY_UPDATE);
         }
         catch (InvalidDesignException e)
@@ -238,6 +284,15 @@ public class SurveyDesignProcessor extends DynamicListProcessor
         ListDefinition listDef = ensureList(container, user, listName, parentSurveyName);
         Domain domain = listDef.getDomain();
 
+        boolean changed = !StandardProperties.hasStandardProperties(domain, parentSurveyName)
+                || isStepPropertyChanged(domain, step)
+                || (step.hasOtherOption() && domain.getPropertyByName(MobileAppStudyManager.getOtherOptionKey(step.getKey())) == null);
+        if (!changed)
+        {
+            logger.debug(String.format(LogMessageFormats.LIST_UNCHANGED, listName));
+            return;
+        }
+
         //Check for key, participantId, and parent survey fields
         StandardProperties.ensureStandardProperties(container, domain, parentSurveyName);
 
@@ -272,4 +327,136 @@ public class SurveyDesignProcessor extends DynamicListProcessor
         }
         // Else field already exists, no need to generate it...
     }
+
+    /**
+     * Checks that a survey's lists are only reported as changed when applying the design would change them
+     */
+    public static class TestCase extends Assert
+    {
+        private static final String FOLDER_NAME = "SurveyDesignProcessorTest";
+        private static final String LIST_NAME = "ChangeTest";
+        private static final String SUB_LIST_NAME = LIST_NAME + "Group";
+
+        private final SurveyDesignProcessor _processor = new SurveyDesignProcessor(null);
+        private Container _container;
+        private User _user;
+
+        @Before
+        public void setUp()
+        {
+            _user = TestContext.get().getUser();
+            _container = TestFolder.create(FOLDER_NAME);
+        }
+
+        @After
+        public void tearDown()
+        {
+            TestFolder.delete(_container);
+        }
+
+        @Test
+        public void testStandardProperties() throws Exception
+        {
+            Domain domain = _processor.ensureList(_container, _user, LIST_NAME, null).getDomain();
+            assertFalse(StandardProperties.hasStandardProperties(domain, null));
+            StandardProperties.ensureStandardProperties(_container, domain, null);
+            assertTrue(StandardProperties.hasStandardProperties(domain, null));
+            domain.save(_user);
+            assertTrue(StandardProperties.hasStandardProperties(getDomain(LIST_NAME), null));
+
+            // Sub-lists also need the lookup to their parent list
+            Domain subDomain = _processor.ensureList(_container, _user, SUB_LIST_NAME, LIST_NAME).getDomain();
+            StandardProperties.ensureStandardProperties(_container, subDomain, null);
+            assertFalse(StandardProperties.hasStandardProperties(subDomain, LIST_NAME));
+            StandardProperties.ensureStandardProperties(_container, subDomain, LIST_NAME);
+            assertTrue(StandardProperties.hasStandardProperties(subDomain, LIST_NAME));
+        }
+
+        @Test
+        public void testStepPropertyChanges() throws Exception
+        {
+            TestField field = new TestField(JdbcType.VARCHAR, 100, "Question");
+            Domain domain = _processor.ensureList(_container, _user, LIST_NAME, null).getDomain();
+            assertTrue("Missing property is a change", _processor.isStepPropertyChanged(domain, field));
+            _processor.ensureStepProperty(domain, field);
+            assertFalse("Applied field is no longer a change", _processor.isStepPropertyChanged(domain, field));
+            domain.save(_user);
+
+            domain = getDomain(LIST_NAME);
+            assertFalse(_processor.isStepPropertyChanged(domain, field));
+            assertFalse("Strings are never shortened", _processor.isStepPropertyChanged(domain, new TestField(JdbcType.VARCHAR, 50, "Question")));
+            assertFalse("Missing label is left as it is", _processor.isStepPropertyChanged(domain, new TestField(JdbcType.VARCHAR, 100, null)));
+
+            TestField longer = new TestField(JdbcType.VARCHAR, 200, "Question");
+            assertTrue(_processor.isStepPropertyChanged(domain, longer));
+            assertEquals("Checking for changes shouldn't change the property", 100, domain.getPropertyByName(field.getKey()).getScale());
+            _processor.ensureStepProperty(domain, longer);
+            assertEquals(200, domain.getPropertyByName(field.getKey()).getScale());
+            assertFalse(_processor.isStepPropertyChanged(domain, longer));
+
+            TestField relabeled = new TestField(JdbcType.VARCHAR, 200, "New question");
+            assertTrue(_processor.isStepPropertyChanged(domain, relabeled));
+            _processor.ensureStepProperty(domain, relabeled);
+            assertFalse(_processor.isStepPropertyChanged(domain, relabeled));
+
+            try
+            {
+                _processor.isStepPropertyChanged(domain, new TestField(JdbcType.INTEGER, null, "Question"));
+                fail("Changing the result type should be rejected");
+            }
+            catch (InvalidDesignException e)
+            {
+                assertEquals(String.format(LogMessageFormats.RESULT_TYPE_MISMATCH, field.getKey()), e.getMessage());
+            }
+        }
+
+        private Domain getDomain(String listName)
+        {
+            return ListService.get().getList(_container, listName).getDomain();
+        }
+
+        private static class TestField implements IDynamicListField
+        {
+            private final JdbcType _type;
+            private final Integer _maxLength;
+            private final String _label;
+
+            private TestField(JdbcType type, @Nullable Integer maxLength, @Nullable String label)
+            {
+                _type = type;
+                _maxLength = maxLength;
+                _label = label;
+            }
+
+            @Override
+            public String getKey()
+            {
+                return "Answer";
+            }
+
+            @Override
+            public JdbcType getPropertyStorageType()
+            {
+                return _type;
+            }
+
+            @Override
+            public @Nullable Integer getMaxLength()
+            {
+                return _maxLength;
+            }
+
+            @Override
+            public String getDescription()
+            {
+                return null;
+            }
+
+            @Override
+            public String getLabel()
+            {
+                return _label;
+            }
+        }
+    }
 }
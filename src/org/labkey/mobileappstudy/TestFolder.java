@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.mobileappstudy;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.ContainerManager;
+import org.labkey.api.data.NormalContainerType;
+import org.labkey.api.security.User;
+import org.labkey.api.util.JunitUtil;
+import org.labkey.api.util.TestContext;
+
+/**
+ * Creates and deletes the folders the module's integration tests run in
+ */
+class TestFolder
+{
+    private TestFolder()
+    {
+    }
+
+    /**
+     * Create a folder under the JUnit test container, replacing one left behind by an earlier run
+     * @param name of the folder, unique to the test class
+     * @return the new folder
+     */
+    static @NotNull Container create(@NotNull String name)
+    {
+        User user = TestContext.get().getUser();
+        Container parent = JunitUtil.getTestContainer();
+        Container existing = parent.getChild(name);
+        if (existing != null)
+            ContainerManager.delete(existing, user);
+
+        return ContainerManager.createContainer(parent, name, null, null, NormalContainerType.NAME, user);
+    }
+
+    /**
+     * Delete a folder made by create(), if there is one
+     */
+    static void delete(@Nullable Container container)
+    {
+        if (container != null)
+            ContainerManager.delete(container, TestContext.get().getUser());
+    }
+}
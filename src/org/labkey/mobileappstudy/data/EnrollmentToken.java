@@ -25,6 +25,16 @@ import java.util.Date;
  */
 public class EnrollmentToken
 {
+    /** Whether a token can be used to enroll in a study **/
+    public enum State
+    {
+        /** not one of the study's tokens **/
+        Unknown,
+        Available,
+        /** a participant has already enrolled with it **/
+        InUse
+    }
+
     private int _rowId;
     private int _batchId;
     private String _token;
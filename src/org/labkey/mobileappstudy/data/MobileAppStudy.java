@@ -35,6 +35,25 @@ public class MobileAppStudy
     private boolean _collectionEnabled;
     private Boolean _canChangeCollection;
 
+    public MobileAppStudy()
+    {
+    }
+
+    /**
+     * Copy a study, e.g. one shared by the StudyRegistry, so the copy can be changed
+     */
+    public MobileAppStudy(MobileAppStudy other)
+    {
+        _rowId = other._rowId;
+        _shortName = other._shortName;
+        _isEditable = other._isEditable;
+        _container = other._container;
+        _created = other._created;
+        _createdBy = other._createdBy;
+        _collectionEnabled = other._collectionEnabled;
+        _canChangeCollection = other._canChangeCollection;
+    }
+
     public String getShortName()
     {
         return _shortName;
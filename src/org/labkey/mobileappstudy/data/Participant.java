@@ -54,6 +54,24 @@ public class Participant
     private ParticipantStatus _status;
     private String _allowDataSharing;
 
+    public Participant()
+    {
+    }
+
+    /**
+     * Copy a participant, e.g. one held in a cache, so the copy can be changed
+     */
+    public Participant(Participant other)
+    {
+        _rowId = other._rowId;
+        _appToken = other._appToken;
+        _studyId = other._studyId;
+        _container = other._container;
+        _created = other._created;
+        _status = other._status;
+        _allowDataSharing = other._allowDataSharing;
+    }
+
     public String getAppToken()
     {
         return _appToken;
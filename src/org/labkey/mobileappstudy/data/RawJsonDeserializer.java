@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.mobileappstudy.data;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+/**
+ * Binds any JSON value as its compact JSON text, copying tokens straight through rather than building a JsonNode tree.
+ * Used for response payloads that are stored as-is and decoded later by ResponseReader.
+ */
+public class RawJsonDeserializer extends JsonDeserializer<String>
+{
+    @Override
+    public String deserialize(JsonParser parser, DeserializationContext context) throws IOException
+    {
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator generator = ResponseReader.MAPPER.getFactory().createGenerator(writer))
+        {
+            generator.copyCurrentStructure(parser);
+        }
+
+        return writer.toString();
+    }
+}
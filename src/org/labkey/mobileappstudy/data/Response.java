@@ -16,7 +16,6 @@
 package org.labkey.mobileappstudy.data;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.IOException;
 import java.util.Date;
@@ -35,9 +34,7 @@ public class Response
 
     public static Response getResponseObject(String responseString) throws IOException
     {
-        ObjectMapper mapper = new ObjectMapper();
-
-        return mapper.readValue(responseString, Response.class);
+        return ResponseReader.read(responseString);
     }
 
     public Date getStartTime()
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.mobileappstudy.data;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import org.labkey.mobileappstudy.surveydesign.SurveyStep;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Streaming decoder for survey response payloads. Walks the JSON once, building the Response and its SurveyResults,
+ * including nested grouped results, directly instead of binding a tree or intermediate maps and converting them.
+ */
+public class ResponseReader
+{
+    /**
+     * Shared mapper for response payloads. Fully configured here, so safe to use from any thread.
+     */
+    public static final ObjectMapper MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private ResponseReader()
+    {
+    }
+
+    public static Response read(String responseString) throws IOException
+    {
+        try (JsonParser parser = MAPPER.getFactory().createParser(responseString))
+        {
+            JsonToken token = parser.nextToken();
+            if (token == null || token == JsonToken.VALUE_NULL)
+                return null;
+            if (token != JsonToken.START_OBJECT)
+                throw new JsonParseException(parser, "Expected response to be an object but got " + token);
+
+            return readResponse(parser);
+        }
+    }
+
+    private static Response readResponse(JsonParser parser) throws IOException
+    {
+        Response response = new Response();
+        while (parser.nextToken() == JsonToken.FIELD_NAME)
+        {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field)
+            {
+                case "startTime":
+                case "start":
+                    response.setStartTime(readDate(parser));
+                    break;
+                case "endTime":
+                case "end":
+                    response.setEndTime(readDate(parser));
+                    break;
+                case "results":
+                    response.setResults(readResults(parser));
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+
+        return response;
+    }
+
+    private static List<SurveyResult> readResults(JsonParser parser) throws IOException
+    {
+        if (parser.currentToken() == JsonToken.VALUE_NULL)
+            return null;
+        if (parser.currentToken() != JsonToken.START_ARRAY)
+            throw new JsonParseException(parser, "Expected results to be an array but got " + parser.currentToken());
+
+        List<SurveyResult> results = new ArrayList<>();
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY)
+        {
+            if (token == JsonToken.START_OBJECT)
+                results.add(readResult(parser));
+            else if (token == JsonToken.VALUE_NULL)
+                results.add(null);
+            else
+                throw new JsonParseException(parser, "Expected result to be an object but got " + token);
+        }
+
+        return results;
+    }
+
+    /**
+     * Read a result object. The result's type determines how its value is read, so if the value comes before the
+     * resultType its tokens are buffered until the end of the object.
+     */
+    private static SurveyResult readResult(JsonParser parser) throws IOException
+    {
+        SurveyResult result = new SurveyResult();
+        TokenBuffer bufferedValue = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME)
+        {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field)
+            {
+                case "resultType":
+                    result.setResultType(parser.getValueAsString());
+                    break;
+                case "key":
+                    result.setKey(parser.getValueAsString());
+                    break;
+                case "skipped":
+                    result.setSkipped(MAPPER.readValue(parser, Boolean.class));
+                    break;
+                case "startTime":
+                case "start":
+                    result.setStartTime(readDate(parser));
+                    break;
+                case "endTime":
+                case "end":
+                    result.setEndTime(readDate(parser));
+                    break;
+                case "value":
+                    if (result.getResultType() != null)
+                    {
+                        result.setValue(readValue(parser, result.getStepResultType()));
+                    }
+                    else
+                    {
+                        bufferedValue = new TokenBuffer(parser);
+                        bufferedValue.copyCurrentStructure(parser);
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+
+        if (bufferedValue != null)
+        {
+            try (JsonParser valueParser = bufferedValue.asParser())
+            {
+                valueParser.nextToken();
+                result.setValue(readValue(valueParser, result.getStepResultType()));
+            }
+        }
+
+        return result;
+    }
+
+    private static Object readValue(JsonParser parser, SurveyStep.StepResultType type) throws IOException
+    {
+        if (!type.isSingleValued() && type != SurveyStep.StepResultType.TextChoice && parser.currentToken() == JsonToken.START_ARRAY)
+            return readGroupedValues(parser);
+
+        // Anything else is bound as it always has been, validation is done when the value is parsed
+        return MAPPER.readValue(parser, Object.class);
+    }
+
+    /**
+     * Read a grouped result value, which is either an array of results or an array of arrays of results
+     */
+    private static List<Object> readGroupedValues(JsonParser parser) throws IOException
+    {
+        List<Object> values = new ArrayList<>();
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY)
+        {
+            if (token == JsonToken.START_OBJECT)
+                values.add(readResult(parser));
+            else if (token == JsonToken.START_ARRAY)
+                values.add(readGroupedValues(parser));
+            else
+                values.add(MAPPER.readValue(parser, Object.class));
+        }
+
+        return values;
+    }
+
+    private static Date readDate(JsonParser parser) throws IOException
+    {
+        return MAPPER.readValue(parser, Date.class);
+    }
+}
@@ -30,7 +30,11 @@ public class SurveyResponse
         PENDING(0, "Pending"),
         PROCESSED(1, "Processed"),
         ERROR(2, "Error"),
-        FORWARDED(3, "Forwarded");
+        FORWARDED(3, "Forwarded"),
+        /** claimed by a forwarding job that is sending it **/
+        FORWARDING(4, "Forwarding"),
+        /** claimed by a server that is shredding it **/
+        SHREDDING(5, "Shredding");
 
         private final int pkId;
         private final String displayText;
@@ -60,6 +64,7 @@ public class SurveyResponse
     private ResponseStatus _status;
     private Date _processed;
     private User _processedBy;
+    private Date _claimedAt;
     private String _errorMessage;
     private Date _created;
     private Container _container;
@@ -123,6 +128,18 @@ public class SurveyResponse
         _processed = processed;
     }
 
+    /**
+     * @return when a server claimed the response for forwarding or shredding, null if it has never been claimed
+     */
+    public Date getClaimedAt()
+    {
+        return _claimedAt;
+    }
+    public void setClaimedAt(Date claimedAt)
+    {
+        _claimedAt = claimedAt;
+    }
+
     /**
      * Use when looking for an explicit state
      * @return Current processing status of response
@@ -138,11 +155,11 @@ public class SurveyResponse
 
     /**
      * Use when checking if response has been shredded yet
-     * @return True if the response status is PROCESSED or FORWARDED, false otherwise.
+     * @return True if the response status is PROCESSED, FORWARDING or FORWARDED, false otherwise.
      */
     public boolean isResponseProcessed()
     {
-        return _status == ResponseStatus.FORWARDED || _status == ResponseStatus.PROCESSED;
+        return _status == ResponseStatus.FORWARDED || _status == ResponseStatus.PROCESSED || _status == ResponseStatus.FORWARDING;
     }
 
     public String getActivityId()
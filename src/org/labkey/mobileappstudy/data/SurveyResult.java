@@ -16,14 +16,26 @@
 package org.labkey.mobileappstudy.data;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Assert;
+import org.junit.Test;
 import org.labkey.mobileappstudy.MobileAppStudyManager;
 import org.labkey.mobileappstudy.surveydesign.SurveyStep;
 
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.text.ParsePosition;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.chrono.IsoChronology;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.ResolverStyle;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.List;
 
@@ -33,8 +45,20 @@ import java.util.List;
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class SurveyResult extends ResponseMetadata
 {
-    private static final DateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd");
-    private static final DateFormat DATE_TIME_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+    private static final int DATE_LENGTH = "yyyy-MM-dd".length();
+    // Both formats resolve leniently, so an out of range day such as "2021-02-30" rolls over as it did with SimpleDateFormat
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ISO_LOCAL_DATE
+            .withResolverStyle(ResolverStyle.LENIENT);
+    // Date-time values have an optional fraction and an optional offset, which may or may not include a colon
+    private static final DateTimeFormatter DATE_TIME_FORMAT = new DateTimeFormatterBuilder()
+            .append(DateTimeFormatter.ISO_LOCAL_DATE)
+            .appendLiteral('T')
+            .append(DateTimeFormatter.ISO_LOCAL_TIME)
+            .optionalStart().appendOffset("+HH:MM", "Z").optionalEnd()
+            .optionalStart().appendOffset("+HHMM", "Z").optionalEnd()
+            .toFormatter()
+            .withResolverStyle(ResolverStyle.LENIENT)
+            .withChronology(IsoChronology.INSTANCE);
     private String _resultType;
     private String _key;
     private Object _value;
@@ -98,24 +122,7 @@ public class SurveyResult extends ResponseMetadata
         {
             case Date:
                 if (_value instanceof String)
-                {
-                    // first try to parse it as a DateTime value
-                    try
-                    {
-                        _parsedValue = DATE_TIME_FORMAT.parse((String) _value);
-                    }
-                    catch (ParseException e1) // then try as a Date value
-                    {
-                        try
-                        {
-                            _parsedValue = DATE_FORMAT.parse((String) _value);
-                        }
-                        catch (ParseException e2)
-                        {
-                            throw new IllegalArgumentException("Invalid date string format for field '" + getKey() + "' (" + _value + ")");
-                        }
-                    }
-                }
+                    _parsedValue = parseDate((String) _value);
                 else
                     throw new IllegalArgumentException("Value type for Date field '" + getKey() + "' expected to be String but got "+ _value.getClass());
                 break;
@@ -177,6 +184,50 @@ public class SurveyResult extends ResponseMetadata
         }
     }
 
+    /**
+     * Parse a Date step value. The format is chosen from the shape of the value: "yyyy-MM-dd" alone is a date at
+     * midnight server time, "yyyy-MM-dd'T'..." is a date-time, in server time if it has no offset. As with the
+     * previous SimpleDateFormat parsing, only the start of the value has to parse: text after the date-time is
+     * ignored, a value whose time can't be parsed is read as its date alone, and out of range fields roll over.
+     * Unlike SimpleDateFormat, which required "yyyy-MM-dd'T'HH:mm:ss.SSSZ" and otherwise fell back to the date, a
+     * date-time without milliseconds or an offset keeps its time.
+     * @param value to parse
+     * @return the parsed date
+     * @throws IllegalArgumentException if the value doesn't start with a valid date
+     */
+    private Date parseDate(String value)
+    {
+        try
+        {
+            // Check the value matches before resolving it, so values that don't match are rejected without an exception
+            if (value.length() > DATE_LENGTH && value.charAt(DATE_LENGTH) == 'T' && matches(DATE_TIME_FORMAT, value))
+            {
+                TemporalAccessor parsed = DATE_TIME_FORMAT.parse(value, new ParsePosition(0));
+                if (parsed.isSupported(ChronoField.OFFSET_SECONDS))
+                    return Date.from(OffsetDateTime.from(parsed).toInstant());
+                else
+                    return Date.from(LocalDateTime.from(parsed).atZone(ZoneId.systemDefault()).toInstant());
+            }
+
+            if (matches(DATE_FORMAT, value))
+                return Date.from(LocalDate.from(DATE_FORMAT.parse(value, new ParsePosition(0))).atStartOfDay(ZoneId.systemDefault()).toInstant());
+        }
+        catch (DateTimeException e)
+        {
+            // a field too large to resolve, even leniently; fall through to the error below
+        }
+
+        throw new IllegalArgumentException("Invalid date string format for field '" + getKey() + "' (" + value + ")");
+    }
+
+    /**
+     * @return true if the start of the value matches the format, ignoring any trailing text
+     */
+    private static boolean matches(DateTimeFormatter format, String value)
+    {
+        ParsePosition position = new ParsePosition(0);
+        return format.parseUnresolved(value, position) != null && position.getErrorIndex() < 0;
+    }
 
     /**
      * recursively convert a list of survey results, which may itself contain lists of survey results, into a list of objects.
@@ -188,16 +239,19 @@ public class SurveyResult extends ResponseMetadata
     private List<Object> convertSurveyResults(List list)
     {
         List<Object> results = new ArrayList<>();
-        ObjectMapper mapper = new ObjectMapper();
         for (Object item : list)
         {
             if (item instanceof List)
             {
                 results.add(convertSurveyResults((List) item));
             }
+            else if (item instanceof SurveyResult) // already decoded by ResponseReader
+            {
+                results.add(item);
+            }
             else if (item instanceof LinkedHashMap)
             {
-                results.add(mapper.convertValue(item, SurveyResult.class));
+                results.add(ResponseReader.MAPPER.convertValue(item, SurveyResult.class));
             }
             else
             {
@@ -206,4 +260,70 @@ public class SurveyResult extends ResponseMetadata
         }
         return results;
     }
+
+    public static class TestCase extends Assert
+    {
+        private final SurveyResult _result = new SurveyResult();
+
+        @Test
+        public void testDate()
+        {
+            assertEquals(expected(LocalDateTime.of(2021, 3, 14, 0, 0)), _result.parseDate("2021-03-14"));
+            // text after the date is ignored
+            assertEquals(expected(LocalDateTime.of(2021, 3, 14, 0, 0)), _result.parseDate("2021-03-14 extra"));
+        }
+
+        @Test
+        public void testRollover()
+        {
+            // out of range fields roll over, as they did with SimpleDateFormat
+            assertEquals(expected(LocalDateTime.of(2021, 3, 2, 0, 0)), _result.parseDate("2021-02-30"));
+            assertEquals(expected(LocalDateTime.of(2022, 1, 1, 0, 0)), _result.parseDate("2021-13-01"));
+            Date expected = Date.from(OffsetDateTime.of(2021, 3, 2, 15, 9, 26, 535_000_000, ZoneOffset.UTC).toInstant());
+            assertEquals(expected, _result.parseDate("2021-02-30T15:09:26.535Z"));
+        }
+
+        @Test
+        public void testDateTime()
+        {
+            Date expected = Date.from(OffsetDateTime.of(2021, 3, 14, 15, 9, 26, 535_000_000, ZoneOffset.ofHours(-5)).toInstant());
+            assertEquals(expected, _result.parseDate("2021-03-14T15:09:26.535-0500"));
+            assertEquals(expected, _result.parseDate("2021-03-14T15:09:26.535-05:00"));
+            // SimpleDateFormat read these as the date alone; they now keep their time
+            assertEquals(expected(LocalDateTime.of(2021, 3, 14, 15, 9, 26)), _result.parseDate("2021-03-14T15:09:26"));
+            assertEquals(Date.from(OffsetDateTime.of(2021, 3, 14, 15, 9, 26, 0, ZoneOffset.ofHours(-5)).toInstant()), _result.parseDate("2021-03-14T15:09:26-05:00"));
+        }
+
+        @Test
+        public void testTrailingText()
+        {
+            Date expected = Date.from(OffsetDateTime.of(2021, 3, 14, 15, 9, 26, 535_000_000, ZoneOffset.UTC).toInstant());
+            assertEquals(expected, _result.parseDate("2021-03-14T15:09:26.535+0000[UTC]"));
+            assertEquals(expected, _result.parseDate("2021-03-14T15:09:26.535Z extra"));
+            // a time that can't be parsed leaves the date
+            assertEquals(expected(LocalDateTime.of(2021, 3, 14, 0, 0)), _result.parseDate("2021-03-14Tnoon"));
+        }
+
+        @Test
+        public void testInvalid()
+        {
+            for (String value : new String[] {"", "2021-03", "2021-3-14", "14/03/2021", "not a date"})
+            {
+                try
+                {
+                    _result.parseDate(value);
+                    fail("Expected invalid date: " + value);
+                }
+                catch (IllegalArgumentException e)
+                {
+                    // expected
+                }
+            }
+        }
+
+        private Date expected(LocalDateTime dateTime)
+        {
+            return Date.from(dateTime.atZone(ZoneId.systemDefault()).toInstant());
+        }
+    }
 }
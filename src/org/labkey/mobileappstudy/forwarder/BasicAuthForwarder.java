@@ -1,19 +1,13 @@
 package org.labkey.mobileappstudy.forwarder;
 
 import org.apache.logging.log4j.Logger;
-import org.apache.logging.log4j.LogManager;
 import org.labkey.api.data.Container;
-import org.labkey.api.pipeline.PipelineJob;
-import org.labkey.api.security.User;
-import org.labkey.mobileappstudy.MobileAppStudyManager;
-import org.labkey.mobileappstudy.data.SurveyResponse;
 
 import java.net.Authenticator;
 import java.net.PasswordAuthentication;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
 
 public class BasicAuthForwarder extends Forwarder
 {
@@ -22,6 +16,7 @@ public class BasicAuthForwarder extends Forwarder
         super(container, logger);
     }
 
+    @Override
     protected HttpClient getClient()
     {
         String username = properties.get(ForwarderProperties.USER_PROPERTY_NAME);
@@ -37,22 +32,10 @@ public class BasicAuthForwarder extends Forwarder
     }
 
     @Override
-    public PipelineJob.TaskStatus makeRequest(User user, SurveyResponse response) throws Exception
+    protected HttpRequest.Builder newRequest()
     {
-        HttpRequest req = HttpRequest.newBuilder()
-                .uri(URI.create(getForwardingEndpoint()))
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(getRequestBody(response)))
-                .build();
-
-        var httpResponse = getClient().send(req, HttpResponse.BodyHandlers.ofString());
-        if (httpResponse.statusCode() < 200 || 300 < httpResponse.statusCode())
-            return handleError(String.format("Stopping forwarding job. ResponseId [%1$s] received error response %2$s:\n%3$s", response.getRowId(), httpResponse.statusCode(), httpResponse.body()));
-
-        logger.info(String.format("Successfully forwarded response [%1$s].", response.getRowId()));
-        MobileAppStudyManager.get().updateProcessingStatus(user, response.getRowId(), SurveyResponse.ResponseStatus.FORWARDED);
-
-        return PipelineJob.TaskStatus.running;
+        return HttpRequest.newBuilder()
+                .uri(URI.create(getForwardingEndpoint()));
     }
 
     @Override
@@ -1,5 +1,8 @@
 package org.labkey.mobileappstudy.forwarder;
 
+import com.google.common.collect.Lists;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 import org.labkey.api.data.Container;
@@ -9,11 +12,29 @@ import org.labkey.mobileappstudy.MobileAppStudyManager;
 import org.labkey.mobileappstudy.data.SurveyResponse;
 
 import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
 public abstract class Forwarder
 {
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    public static final int MAX_IN_FLIGHT_LIMIT = 64;
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final int MAX_BATCH_SIZE = 500;
+    private static final int STATUS_UPDATE_BATCH_SIZE = 100;
+    private static final int MAX_RETRIES = 1;
+
     protected final Container container;
     protected final Map<String, String> properties;
     protected HttpClient client;
@@ -27,19 +48,239 @@ public abstract class Forwarder
         this.properties = Collections.unmodifiableMap(new ForwarderProperties().getForwarderConnection(container));
     }
 
-    public abstract PipelineJob.TaskStatus makeRequest(User user, SurveyResponse response) throws Exception;
     public abstract String getForwardingEndpoint();
+    protected abstract HttpClient getClient();
+
+    /**
+     * Start a request to the forwarding endpoint, including any authorization. The content headers and body are
+     * added by the caller.
+     * @return the request builder
+     * @throws Exception if the request can't be built, e.g. no auth token could be obtained
+     */
+    protected abstract HttpRequest.Builder newRequest() throws Exception;
+
+    /**
+     * Check if a request that received this status should be sent again, e.g. after refreshing credentials
+     * @param statusCode of the endpoint's response
+     * @return true to retry the request
+     */
+    protected boolean retryForwarding(int statusCode)
+    {
+        return false;
+    }
+
+    /**
+     * Forward a set of responses, keeping up to the configured number of requests in flight. Depending on the payload
+     * format each request carries one response or a batch of them; a batch is acknowledged as a whole, so either all
+     * of its responses are marked FORWARDED or none are. Forwarded responses are marked in batches. On the first
+     * error no further requests are started, the requests already in flight are allowed to finish and recorded, and
+     * the error is returned.
+     *
+     * Requests are always built on the calling thread, including those sent again after a retryable status, since
+     * building one may block to obtain new credentials and the HTTP client's threads mustn't be held up.
+     * @param user to record as updating the response status
+     * @param responses to forward, in the order they should be sent
+     * @return TaskStatus.error if a response could not be forwarded, TaskStatus.running otherwise
+     * @throws InterruptedException if interrupted while waiting for requests to complete, after marking the responses
+     * already forwarded
+     */
+    public PipelineJob.TaskStatus forwardResponses(User user, List<SurveyResponse> responses) throws InterruptedException
+    {
+        int window = isPreserveOrder() ? 1 : getMaxInFlight();
+        Semaphore inFlight = new Semaphore(window);
+        AtomicReference<String> failure = new AtomicReference<>();
+        List<Integer> forwarded = new ArrayList<>();
+        // Requests to send again, queued by the completion handlers and sent before any new request
+        Queue<Attempt> retries = new ConcurrentLinkedQueue<>();
+
+        PayloadFormat format = getPayloadFormat();
+        Map<Integer, String> tokens = MobileAppStudyManager.get().getEnrollmentTokens(container,
+                responses.stream().map(SurveyResponse::getParticipantId).collect(Collectors.toSet()));
+        Iterator<List<SurveyResponse>> units = Lists.partition(responses, format.isBatch() ? getBatchSize() : 1).iterator();
+
+        try
+        {
+            while (true)
+            {
+                inFlight.acquire();
+                Attempt attempt = nextAttempt(failure, retries, units);
+                if (attempt == null)
+                {
+                    // Nothing left to start, wait for the requests still in flight, which may queue retries
+                    inFlight.release();
+                    inFlight.acquire(window);
+                    inFlight.release(window);
+                    if (failure.get() != null || retries.isEmpty())
+                        break;
+                    continue;
+                }
+
+                String description = describe(attempt.unit);
+                sendAsync(format, attempt.unit, tokens).whenComplete((httpResponse, e) -> {
+                    try
+                    {
+                        if (e != null)
+                            failure.compareAndSet(null, String.format("Failed forwarding %1$s with: %2$s", description, e.getLocalizedMessage()));
+                        else if (attempt.attempts < MAX_RETRIES && retryForwarding(httpResponse.statusCode()))
+                        {
+                            logger.debug(String.format("Request for %1$s received status %2$s, attempting retry.", description, httpResponse.statusCode()));
+                            retries.add(new Attempt(attempt.unit, attempt.attempts + 1));
+                        }
+                        else if (httpResponse.statusCode() < 200 || 300 < httpResponse.statusCode())
+                            failure.compareAndSet(null, String.format("Stopping forwarding job. %1$s received error response %2$s:\n%3$s", StringUtils.capitalize(description), httpResponse.statusCode(), httpResponse.body()));
+                        else
+                        {
+                            logger.info(String.format("Successfully forwarded %1$s.", description));
+                            synchronized (forwarded)
+                            {
+                                attempt.unit.forEach(response -> forwarded.add(response.getRowId()));
+                            }
+                        }
+                    }
+                    finally
+                    {
+                        inFlight.release();
+                    }
+                });
+
+                updateForwardedStatus(user, forwarded, STATUS_UPDATE_BATCH_SIZE);
+            }
+        }
+        finally
+        {
+            // Mark what the endpoint has already acknowledged, even if interrupted while waiting for requests
+            updateForwardedStatus(user, forwarded, 1);
+        }
+
+        return failure.get() != null ? handleError(failure.get()) : PipelineJob.TaskStatus.running;
+    }
+
+    /**
+     * @return the next request to send, retries first, or null if there is none or forwarding has failed
+     */
+    private static Attempt nextAttempt(AtomicReference<String> failure, Queue<Attempt> retries, Iterator<List<SurveyResponse>> units)
+    {
+        if (failure.get() != null)
+            return null;
+
+        Attempt retry = retries.poll();
+        if (retry != null)
+            return retry;
+
+        return units.hasNext() ? new Attempt(units.next(), 0) : null;
+    }
+
+    private CompletableFuture<HttpResponse<String>> sendAsync(PayloadFormat format, List<SurveyResponse> unit, Map<Integer, String> tokens)
+    {
+        HttpRequest request;
+        try
+        {
+            List<String> envelopes = new ArrayList<>(unit.size());
+            unit.forEach(response -> envelopes.add(getRequestBody(response, tokens.get(response.getParticipantId()))));
+
+            HttpRequest.Builder builder = newRequest()
+                    .header("Content-Type", format.getContentType())
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(format.getBody(envelopes)));
+            if (format.getContentEncoding() != null)
+                builder.header("Content-Encoding", format.getContentEncoding());
+            request = builder.build();
+        }
+        catch (Exception e)
+        {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return getClient().sendAsync(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    /**
+     * @return a description of the responses sent in a request for log and error messages
+     */
+    private static String describe(List<SurveyResponse> unit)
+    {
+        if (unit.size() == 1)
+            return String.format("response [%1$s]", unit.get(0).getRowId());
+
+        return String.format("batch of %1$s responses [%2$s-%3$s]", unit.size(), unit.get(0).getRowId(), unit.get(unit.size() - 1).getRowId());
+    }
+
+    /**
+     * Mark the responses forwarded so far, once there are enough of them to make up a batch
+     */
+    private void updateForwardedStatus(User user, List<Integer> forwarded, int minBatchSize)
+    {
+        List<Integer> rowIds;
+        synchronized (forwarded)
+        {
+            if (forwarded.isEmpty() || forwarded.size() < minBatchSize)
+                return;
+
+            rowIds = new ArrayList<>(forwarded);
+            forwarded.clear();
+        }
+
+        MobileAppStudyManager.get().updateProcessingStatus(user, rowIds, SurveyResponse.ResponseStatus.FORWARDED, null);
+    }
+
+    /**
+     * @return the number of requests that may be in flight at once for the container
+     */
+    protected int getMaxInFlight()
+    {
+        int maxInFlight = NumberUtils.toInt(properties.get(ForwarderProperties.MAX_IN_FLIGHT), DEFAULT_MAX_IN_FLIGHT);
+        return Math.max(1, Math.min(maxInFlight, MAX_IN_FLIGHT_LIMIT));
+    }
+
+    /**
+     * @return true if responses must be sent one at a time, in order
+     */
+    protected boolean isPreserveOrder()
+    {
+        return Boolean.parseBoolean(properties.get(ForwarderProperties.PRESERVE_ORDER));
+    }
+
+    /**
+     * @return how responses are packaged into requests for the container
+     */
+    protected PayloadFormat getPayloadFormat()
+    {
+        String format = properties.get(ForwarderProperties.PAYLOAD_FORMAT);
+        return StringUtils.isBlank(format) ? PayloadFormat.Single : PayloadFormat.valueOf(format);
+    }
+
+    /**
+     * @return the number of responses sent in each request by the batch payload formats
+     */
+    protected int getBatchSize()
+    {
+        int batchSize = NumberUtils.toInt(properties.get(ForwarderProperties.PAYLOAD_BATCH_SIZE), DEFAULT_BATCH_SIZE);
+        return Math.max(1, Math.min(batchSize, MAX_BATCH_SIZE));
+    }
 
     public PipelineJob.TaskStatus handleError(String msg)
     {
         logger.error(msg);
-        MobileAppStudyManager.get().setForwardingJobUnsucessful(container);
+        MobileAppStudyManager.get().setForwardingJobUnsucessful(container, msg);
         return PipelineJob.TaskStatus.error;
     }
 
-    protected String getRequestBody(SurveyResponse response)
+    protected String getRequestBody(SurveyResponse response, String token)
     {
-        String token = MobileAppStudyManager.get().getEnrollmentToken(response.getContainer(), response.getParticipantId());
         return String.format(FORWARD_JSON_FORMAT, response.getActivityId(), response.getSurveyVersion(), token, response.getData());
     }
+
+    /**
+     * The responses sent in a request, and how many times the request has been sent before
+     */
+    private static class Attempt
+    {
+        private final List<SurveyResponse> unit;
+        private final int attempts;
+
+        private Attempt(List<SurveyResponse> unit, int attempts)
+        {
+            this.unit = unit;
+            this.attempts = attempts;
+        }
+    }
 }
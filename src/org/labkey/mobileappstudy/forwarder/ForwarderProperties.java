@@ -35,6 +35,10 @@ public class ForwarderProperties
     public static final String TOKEN_FIELD = "TOKEN_FIELD";
     public static final String TOKEN_HEADER = "TOKEN_HEADER";
     public static final String OAUTH_URL = "OAUTH_URL";
+    public static final String MAX_IN_FLIGHT = "MAX_IN_FLIGHT";
+    public static final String PRESERVE_ORDER = "PRESERVE_ORDER";
+    public static final String PAYLOAD_FORMAT = "PAYLOAD_FORMAT";
+    public static final String PAYLOAD_BATCH_SIZE = "PAYLOAD_BATCH_SIZE";
 
     public static final Set<String> PROPERTIES = Set.of(
         PASSWORD_PLACEHOLDER,
@@ -46,7 +50,11 @@ public class ForwarderProperties
         TOKEN_REQUEST_URL,
         TOKEN_FIELD,
         TOKEN_HEADER,
-        OAUTH_URL);
+        OAUTH_URL,
+        MAX_IN_FLIGHT,
+        PRESERVE_ORDER,
+        PAYLOAD_FORMAT,
+        PAYLOAD_BATCH_SIZE);
 
     /**
      * Set the connection properties for the forwarding endpoint
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.mobileappstudy.forwarder;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.PropertyManager;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-container circuit breaker for response forwarding. A failed forwarding job opens the container's circuit, and
+ * no jobs are started for it until a jittered, exponentially growing backoff has passed. The circuit then goes
+ * half-open and a single probe job is allowed; its success closes the circuit, its failure opens it again with a
+ * longer backoff. Healthy containers are unaffected by a failing one.
+ *
+ * State is persisted in the container's properties, so backoff survives restarts and is visible to admins.
+ */
+public class ForwardingCircuitBreaker
+{
+    public enum State
+    {
+        Closed,
+        Open,
+        HalfOpen
+    }
+
+    private static final Logger logger = LogManager.getLogger(ForwardingCircuitBreaker.class);
+    private static final ForwardingCircuitBreaker instance = new ForwardingCircuitBreaker();
+
+    private static final String CIRCUIT_CATEGORY = "MobileAppForwarderCircuit";
+    private static final String STATE = "STATE";
+    private static final String CONSECUTIVE_FAILURES = "CONSECUTIVE_FAILURES";
+    private static final String RETRY_AFTER = "RETRY_AFTER";
+    private static final String LAST_FAILURE = "LAST_FAILURE";
+    private static final String LAST_FAILURE_MESSAGE = "LAST_FAILURE_MESSAGE";
+    private static final String LAST_SUCCESS = "LAST_SUCCESS";
+
+    private static final long BASE_BACKOFF_MS = TimeUnit.MINUTES.toMillis(5);
+    private static final long MAX_BACKOFF_MS = TimeUnit.HOURS.toMillis(6);
+    // A probe job that hasn't reported back in this long is presumed lost, e.g. to a restart, and another is allowed
+    private static final long PROBE_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(30);
+
+    private final Map<String, Circuit> _circuits = new ConcurrentHashMap<>();
+
+    private ForwardingCircuitBreaker()
+    {
+    }
+
+    public static ForwardingCircuitBreaker get()
+    {
+        return instance;
+    }
+
+    /**
+     * Cheap check, without side effects, for whether the container's circuit is currently refusing jobs
+     * @param container to check
+     * @return true if no job should be started for the container
+     */
+    public boolean isTripped(@NotNull Container container)
+    {
+        Circuit circuit = getCircuit(container);
+        synchronized (circuit)
+        {
+            long now = System.currentTimeMillis();
+            if (circuit.state == State.Open)
+                return now < circuit.retryAfter;
+            if (circuit.state == State.HalfOpen)
+                return now - circuit.probeStarted < PROBE_TIMEOUT_MS;
+            return false;
+        }
+    }
+
+    /**
+     * Ask to start a forwarding job for the container. Once the backoff has passed this claims the single half-open
+     * probe, so only the first caller is allowed.
+     * @param container to start a job for
+     * @return true if a job may be started
+     */
+    public boolean allowRequest(@NotNull Container container)
+    {
+        Circuit circuit = getCircuit(container);
+        synchronized (circuit)
+        {
+            if (isTripped(container))
+                return false;
+
+            if (circuit.state != State.Closed)
+            {
+                circuit.state = State.HalfOpen;
+                circuit.probeStarted = System.currentTimeMillis();
+                logger.info(String.format("Forwarding circuit for container [%1$s] is half-open, sending a probe job.", container.getName()));
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Record a successful forwarding job, closing the container's circuit
+     */
+    public void recordSuccess(@NotNull Container container)
+    {
+        Circuit circuit = getCircuit(container);
+        synchronized (circuit)
+        {
+            boolean recovered = circuit.state != State.Closed;
+            circuit.state = State.Closed;
+            circuit.consecutiveFailures = 0;
+            circuit.retryAfter = 0;
+            circuit.lastSuccess = System.currentTimeMillis();
+
+            // Only persist on recovery, a healthy container shouldn't write its properties on every job
+            if (recovered)
+            {
+                logger.info(String.format("Forwarding circuit for container [%1$s] closed.", container.getName()));
+                save(container, circuit);
+            }
+        }
+    }
+
+    /**
+     * Record a failed forwarding job, opening the container's circuit with a backoff that grows with each
+     * consecutive failure
+     * @param message describing the failure, shown to admins
+     */
+    public void recordFailure(@NotNull Container container, @Nullable String message)
+    {
+        Circuit circuit = getCircuit(container);
+        synchronized (circuit)
+        {
+            long now = System.currentTimeMillis();
+            circuit.consecutiveFailures++;
+            circuit.state = State.Open;
+            circuit.retryAfter = now + getBackoff(circuit.consecutiveFailures);
+            circuit.lastFailure = now;
+            circuit.lastFailureMessage = StringUtils.abbreviate(message, 1000);
+
+            logger.warn(String.format("Forwarding circuit for container [%1$s] opened after %2$s consecutive failure(s). Next attempt after %3$s.",
+                    container.getName(), circuit.consecutiveFailures, new Date(circuit.retryAfter)));
+            save(container, circuit);
+        }
+    }
+
+    /**
+     * Give up a half-open probe without a result, e.g. when the probe job found nothing to forward
+     */
+    public void releaseProbe(@NotNull Container container)
+    {
+        Circuit circuit = getCircuit(container);
+        synchronized (circuit)
+        {
+            if (circuit.state == State.HalfOpen)
+                circuit.probeStarted = 0;
+        }
+    }
+
+    /**
+     * Close the container's circuit and forget its failures, e.g. when its forwarding configuration changes
+     */
+    public void reset(@NotNull Container container)
+    {
+        Circuit circuit = getCircuit(container);
+        synchronized (circuit)
+        {
+            circuit.state = State.Closed;
+            circuit.consecutiveFailures = 0;
+            circuit.retryAfter = 0;
+            save(container, circuit);
+        }
+    }
+
+    /**
+     * @return the circuit state of the container, for display to admins
+     */
+    public Map<String, Object> getHealth(@NotNull Container container)
+    {
+        Circuit circuit = getCircuit(container);
+        Map<String, Object> health = new LinkedHashMap<>();
+        synchronized (circuit)
+        {
+            health.put("container", container.getPath());
+            health.put("state", circuit.state.name());
+            health.put("consecutiveFailures", circuit.consecutiveFailures);
+            health.put("retryAfter", circuit.state == State.Open ? new Date(circuit.retryAfter) : null);
+            health.put("lastFailure", circuit.lastFailure > 0 ? new Date(circuit.lastFailure) : null);
+            health.put("lastFailureMessage", circuit.lastFailureMessage);
+            health.put("lastSuccess", circuit.lastSuccess > 0 ? new Date(circuit.lastSuccess) : null);
+        }
+        return health;
+    }
+
+    /**
+     * Forget the container's circuit, e.g. when the container is deleted
+     */
+    public void clear(@NotNull Container container)
+    {
+        _circuits.remove(container.getId());
+    }
+
+    /**
+     * Exponential backoff with jitter, so endpoints that failed together aren't all retried together
+     */
+    private long getBackoff(int consecutiveFailures)
+    {
+        long backoff = BASE_BACKOFF_MS << Math.min(consecutiveFailures - 1, 16);
+        backoff = Math.min(backoff, MAX_BACKOFF_MS);
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    private Circuit getCircuit(Container container)
+    {
+        return _circuits.computeIfAbsent(container.getId(), id -> load(container));
+    }
+
+    private Circuit load(Container container)
+    {
+        Map<String, String> props = PropertyManager.getNormalStore().getProperties(container, CIRCUIT_CATEGORY);
+        Circuit circuit = new Circuit();
+        String state = props.get(STATE);
+        // A probe in progress when the circuit was saved can't still be running, so treat it as open and due
+        circuit.state = StringUtils.isBlank(state) ? State.Closed : State.valueOf(state) == State.HalfOpen ? State.Open : State.valueOf(state);
+        circuit.consecutiveFailures = NumberUtils.toInt(props.get(CONSECUTIVE_FAILURES));
+        circuit.retryAfter = NumberUtils.toLong(props.get(RETRY_AFTER));
+        circuit.lastFailure = NumberUtils.toLong(props.get(LAST_FAILURE));
+        circuit.lastFailureMessage = props.get(LAST_FAILURE_MESSAGE);
+        circuit.lastSuccess = NumberUtils.toLong(props.get(LAST_SUCCESS));
+        return circuit;
+    }
+
+    private void save(Container container, Circuit circuit)
+    {
+        PropertyManager.PropertyMap props = PropertyManager.getNormalStore().getWritableProperties(container, CIRCUIT_CATEGORY, true);
+        props.put(STATE, circuit.state.name());
+        props.put(CONSECUTIVE_FAILURES, String.valueOf(circuit.consecutiveFailures));
+        props.put(RETRY_AFTER, String.valueOf(circuit.retryAfter));
+        props.put(LAST_FAILURE, String.valueOf(circuit.lastFailure));
+        props.put(LAST_FAILURE_MESSAGE, circuit.lastFailureMessage);
+        props.put(LAST_SUCCESS, String.valueOf(circuit.lastSuccess));
+        props.save();
+    }
+
+    private static class Circuit
+    {
+        private State state = State.Closed;
+        private int consecutiveFailures;
+        private long retryAfter;
+        private long probeStarted;
+        private long lastFailure;
+        private String lastFailureMessage;
+        private long lastSuccess;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.mobileappstudy.forwarder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.data.Container;
+import org.labkey.api.security.User;
+import org.labkey.api.util.ContextListener;
+import org.labkey.api.util.ShutdownListener;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces requests to forward a container's responses. Shredding signals the dispatcher each time responses are
+ * processed; signals for a container within the debounce window become a single dispatch, and at most one forwarding
+ * job per container is active at a time. A signal that arrives while a job is active is remembered and dispatched
+ * when that job finishes, since the job may already have passed the newly processed responses.
+ *
+ * This only coalesces work on one server. Jobs on different servers are kept from sending the same response by
+ * claiming rows before forwarding them, see MobileAppStudyManager.claimResponsesToForward.
+ *
+ * The debounce timer stops at shutdown. Signals after that are dropped; the periodic forwarding job picks up their
+ * responses.
+ */
+public class ForwardingDispatcher implements ShutdownListener
+{
+    private static final Logger logger = LogManager.getLogger(ForwardingDispatcher.class);
+    private static final ForwardingDispatcher instance = new ForwardingDispatcher();
+
+    private static final long DEBOUNCE_MS = 2000;
+    // A job that hasn't reported finishing in this long is presumed lost, e.g. cancelled before it ran
+    private static final long ACTIVE_TIMEOUT_MS = TimeUnit.HOURS.toMillis(1);
+
+    private final ScheduledExecutorService _timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "MobileAppForwardingDispatcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Guarded by this. Containers with a dispatch scheduled, containers with an active job and when it was
+    // dispatched, and containers signalled while their job was active.
+    private final Set<String> _scheduled = new HashSet<>();
+    private final Map<String, Long> _active = new HashMap<>();
+    private final Set<String> _signalled = new HashSet<>();
+
+    private ForwardingDispatcher()
+    {
+    }
+
+    public static ForwardingDispatcher get()
+    {
+        return instance;
+    }
+
+    public void start()
+    {
+        ContextListener.addShutdownListener(this);
+    }
+
+    @Override
+    public String getName()
+    {
+        return "Mobile app forwarding dispatcher";
+    }
+
+    @Override
+    public void shutdownPre()
+    {
+        _timer.shutdownNow();
+    }
+
+    @Override
+    public void shutdownStarted()
+    {
+    }
+
+    /**
+     * Note that the container has responses to forward. A dispatch is scheduled after the debounce window unless
+     * one is already scheduled.
+     * @param container hosting the study
+     * @param user to run the forwarding job as
+     */
+    public void signal(@NotNull Container container, @Nullable User user)
+    {
+        synchronized (this)
+        {
+            if (!_scheduled.add(container.getId()))
+                return;
+        }
+
+        try
+        {
+            _timer.schedule(() -> {
+                synchronized (this)
+                {
+                    _scheduled.remove(container.getId());
+                }
+                dispatch(container, user);
+            }, DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // Shutting down
+            synchronized (this)
+            {
+                _scheduled.remove(container.getId());
+            }
+        }
+    }
+
+    /**
+     * Start a forwarding job for the container now, unless one is already active
+     * @param container hosting the study
+     * @param user to run the forwarding job as
+     */
+    public void dispatch(@NotNull Container container, @Nullable User user)
+    {
+        String id = container.getId();
+        synchronized (this)
+        {
+            Long dispatched = _active.get(id);
+            if (dispatched != null && System.currentTimeMillis() - dispatched < ACTIVE_TIMEOUT_MS)
+            {
+                _signalled.add(id);
+                return;
+            }
+
+            _active.put(id, System.currentTimeMillis());
+            _signalled.remove(id);
+        }
+
+        boolean queued = false;
+        try
+        {
+            queued = new SurveyResponseForwardingJob().call(user, container);
+        }
+        catch (Exception e)
+        {
+            logger.error(String.format("Unable to dispatch forwarding job for container [%1$s].", container.getName()), e);
+            new SurveyResponseForwardingJob().setUnsuccessful(container, e.getLocalizedMessage());
+        }
+        finally
+        {
+            if (!queued)
+                finished(container, user);
+        }
+    }
+
+    /**
+     * Note that the container's forwarding job has finished, dispatching again if the container was signalled while
+     * it was active
+     * @param container hosting the study
+     * @param user to run any further forwarding job as
+     */
+    public void finished(@NotNull Container container, @Nullable User user)
+    {
+        boolean signalled;
+        synchronized (this)
+        {
+            _active.remove(container.getId());
+            signalled = _signalled.remove(container.getId());
+        }
+
+        if (signalled)
+            signal(container, user);
+    }
+}
@@ -15,8 +15,12 @@ import java.util.Map;
 import static org.labkey.api.action.SpringActionController.ERROR_MSG;
 import static org.labkey.api.action.SpringActionController.ERROR_REQUIRED;
 import static org.labkey.mobileappstudy.forwarder.ForwarderProperties.FORWARDING_TYPE;
+import static org.labkey.mobileappstudy.forwarder.ForwarderProperties.MAX_IN_FLIGHT;
 import static org.labkey.mobileappstudy.forwarder.ForwarderProperties.OAUTH_URL;
 import static org.labkey.mobileappstudy.forwarder.ForwarderProperties.PASSWORD_PROPERTY_NAME;
+import static org.labkey.mobileappstudy.forwarder.ForwarderProperties.PAYLOAD_BATCH_SIZE;
+import static org.labkey.mobileappstudy.forwarder.ForwarderProperties.PAYLOAD_FORMAT;
+import static org.labkey.mobileappstudy.forwarder.ForwarderProperties.PRESERVE_ORDER;
 import static org.labkey.mobileappstudy.forwarder.ForwarderProperties.TOKEN_FIELD;
 import static org.labkey.mobileappstudy.forwarder.ForwarderProperties.TOKEN_HEADER;
 import static org.labkey.mobileappstudy.forwarder.ForwarderProperties.TOKEN_REQUEST_URL;
@@ -62,6 +66,8 @@ public enum ForwardingType implements SafeToRenderEnum
                     }
 
 
+                    validateDeliveryConfig(form, errors);
+
                     if (StringUtils.isBlank(form.getTokenRequestURL()))
                         errors.rejectValue("tokenRequestURL", ERROR_REQUIRED, "Field cannot be blank.");
                     else try
@@ -85,6 +91,7 @@ public enum ForwardingType implements SafeToRenderEnum
                     propertyMap.put(TOKEN_HEADER, form.getHeader());
                     propertyMap.put(OAUTH_URL, form.getOauthURL());
                     propertyMap.put(FORWARDING_TYPE, form.getForwardingType().name());
+                    putDeliveryProperties(propertyMap, form);
 
                     new ForwarderProperties().setForwarderProperties(container, propertyMap);
                 }
@@ -116,6 +123,8 @@ public enum ForwardingType implements SafeToRenderEnum
                         errors.rejectValue("username", ERROR_REQUIRED, "Field cannot be blank.");
                     if ( StringUtils.isBlank(form.getPassword()))
                         errors.rejectValue("password", ERROR_REQUIRED, "Field cannot be blank.");
+
+                    validateDeliveryConfig(form, errors);
                 }
 
 
@@ -127,6 +136,7 @@ public enum ForwardingType implements SafeToRenderEnum
                     propertyMap.put(PASSWORD_PROPERTY_NAME, form.getPassword());
                     propertyMap.put(URL_PROPERTY_NAME, form.getBasicURL());
                     propertyMap.put(FORWARDING_TYPE, form.getForwardingType().name());
+                    putDeliveryProperties(propertyMap, form);
 
                     new ForwarderProperties().setForwarderProperties(container, propertyMap);
                 }
@@ -139,6 +149,29 @@ public enum ForwardingType implements SafeToRenderEnum
             };
 
     public abstract void validateConfig(MobileAppStudyController.ForwardingSettingsForm form, Errors errors);
+
+    /**
+     * Validate the settings that control how responses are sent, common to all enabled forwarding types
+     */
+    private static void validateDeliveryConfig(MobileAppStudyController.ForwardingSettingsForm form, Errors errors)
+    {
+        Integer maxInFlight = form.getMaxInFlight();
+        if (maxInFlight != null && (maxInFlight < 1 || maxInFlight > Forwarder.MAX_IN_FLIGHT_LIMIT))
+            errors.rejectValue("maxInFlight", ERROR_MSG, String.format("Concurrent requests must be between 1 and %1$s.", Forwarder.MAX_IN_FLIGHT_LIMIT));
+
+        Integer batchSize = form.getBatchSize();
+        if (batchSize != null && (batchSize < 1 || batchSize > Forwarder.MAX_BATCH_SIZE))
+            errors.rejectValue("batchSize", ERROR_MSG, String.format("Batch size must be between 1 and %1$s.", Forwarder.MAX_BATCH_SIZE));
+    }
+
+    private static void putDeliveryProperties(Map<String, String> propertyMap, MobileAppStudyController.ForwardingSettingsForm form)
+    {
+        propertyMap.put(MAX_IN_FLIGHT, String.valueOf(form.getMaxInFlight() != null ? form.getMaxInFlight() : Forwarder.DEFAULT_MAX_IN_FLIGHT));
+        propertyMap.put(PRESERVE_ORDER, String.valueOf(form.isPreserveOrder()));
+        propertyMap.put(PAYLOAD_FORMAT, (form.getPayloadFormat() != null ? form.getPayloadFormat() : PayloadFormat.Single).name());
+        propertyMap.put(PAYLOAD_BATCH_SIZE, String.valueOf(form.getBatchSize() != null ? form.getBatchSize() : Forwarder.DEFAULT_BATCH_SIZE));
+    }
+
     public abstract void setForwardingProperties(Container container, MobileAppStudyController.ForwardingSettingsForm form);
     public abstract Forwarder getForwarder(Container container, Logger logger);
 }
\ No newline at end of file
@@ -11,10 +11,6 @@ import org.jetbrains.annotations.Nullable;
 import org.labkey.api.cache.Cache;
 import org.labkey.api.cache.CacheManager;
 import org.labkey.api.data.Container;
-import org.labkey.api.pipeline.PipelineJob;
-import org.labkey.api.security.User;
-import org.labkey.mobileappstudy.MobileAppStudyManager;
-import org.labkey.mobileappstudy.data.SurveyResponse;
 
 import java.io.IOException;
 import java.net.URI;
@@ -26,7 +22,6 @@ import java.util.concurrent.TimeUnit;
 
 public class OAuthForwarder extends Forwarder
 {
-    private static final int MAX_RETRIES = 1;
     private static final Cache<Container, String> authTokenCache =
             CacheManager.getBlockingCache(100, TimeUnit.HOURS.toMillis(1), "Mobile app forwarding tokens",
                     (key, args) -> requestNewAuthToken(key, LogManager.getLogger(OAuthForwarder.class)));
@@ -38,56 +33,32 @@ public class OAuthForwarder extends Forwarder
 
 
     @Override
-    public PipelineJob.TaskStatus makeRequest(User user, SurveyResponse response) throws Exception
+    protected HttpRequest.Builder newRequest() throws AuthenticationException
     {
-        return makeRequest(user, response, 0);
-    }
-
-    private PipelineJob.TaskStatus makeRequest(User user, SurveyResponse response, int attempts) throws Exception
-    {
-        if (attempts >= MAX_RETRIES)
-            return handleError("Exceeded max retry attempts");
-
         String authToken = authTokenCache.get(container);
         if (StringUtils.isBlank(authToken))
-        {
-            return handleError("Unable to obtain auth token.");
-        }
+            throw new AuthenticationException("Unable to obtain auth token.");
 
-
-        HttpRequest req = HttpRequest.newBuilder()
+        return HttpRequest.newBuilder()
                 .uri(URI.create(getForwardingEndpoint()))
-                .header(properties.get(ForwarderProperties.TOKEN_HEADER), "Bearer " + authToken)
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(getRequestBody(response)))
-                .build();
-
-        var httpResponse = getClient().send(req, HttpResponse.BodyHandlers.ofString());
-        int statusCode = httpResponse.statusCode();
+                .header(properties.get(ForwarderProperties.TOKEN_HEADER), "Bearer " + authToken);
+    }
 
-        if (retryForwarding(statusCode))
+    @Override
+    protected boolean retryForwarding(int statusCode)
+    {
+        //Unauthorized implies token is invalid/expired, so retry after getting new auth token
+        if (statusCode == 401)
         {
             authTokenCache.remove(container);
             logger.debug("Request was unauthorized. Clearing token, and attempting retry.");
-            return makeRequest(user, response, attempts + 1);
-        }
-        else if (statusCode < 200 || 300 < statusCode)
-        {
-            return handleError(String.format("Stopping forwarding job. ResponseId [%1$s] received error response %2$s:\n%3$s", response.getRowId(), httpResponse.statusCode(), httpResponse.body()));
+            return true;
         }
-        else
-        {
-            logger.info(String.format("Successfully forwarded response [%1$s].", response.getRowId()));
-            MobileAppStudyManager.get().updateProcessingStatus(user, response.getRowId(), SurveyResponse.ResponseStatus.FORWARDED);
-            return PipelineJob.TaskStatus.running;
-        }
-    }
 
-    private boolean retryForwarding(int statusCode)
-    {
-        return statusCode == 401; //Unauthorized implies token is invalid/expired, so retry after getting new auth token
+        return false;
     }
 
+    @Override
     protected HttpClient getClient()
     {
         if (client == null)
@@ -125,7 +96,7 @@ public class OAuthForwarder extends Forwarder
 
             if (statusCode < 200 || 300 < statusCode)
             {
-                MobileAppStudyManager.get().setForwardingJobUnsucessful(container);
+                // The failure is recorded against the container's circuit when the forwarder can't build its request
                 throw new AuthenticationException(String.format("Unable to obtain new authentication token. Token request status code [%1$s]. Please check forwarding configuration.", statusCode));
             }
 
@@ -0,0 +1,102 @@
+package org.labkey.mobileappstudy.forwarder;
+
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.util.SafeToRenderEnum;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * How forwarded responses are packaged into requests. Independent of the ForwardingType, which determines the
+ * endpoint and its authorization.
+ *
+ * For the batch formats a request carries several response envelopes and is acknowledged as a whole: a 2xx status
+ * marks every response in it FORWARDED, anything else marks none of them and stops the job, so the entire batch is
+ * sent again by the next job. Endpoints should be prepared to receive a response more than once.
+ */
+public enum PayloadFormat implements SafeToRenderEnum
+{
+    Single("One response per request", "application/json", null)
+            {
+                @Override
+                public byte[] getBody(List<String> envelopes)
+                {
+                    return envelopes.get(0).getBytes(StandardCharsets.UTF_8);
+                }
+
+                @Override
+                public boolean isBatch()
+                {
+                    return false;
+                }
+            },
+    JsonArray("JSON array of responses", "application/json", null)
+            {
+                @Override
+                public byte[] getBody(List<String> envelopes)
+                {
+                    return ("[" + String.join(",", envelopes) + "]").getBytes(StandardCharsets.UTF_8);
+                }
+            },
+    NdjsonGzip("Gzipped newline-delimited JSON", "application/x-ndjson", "gzip")
+            {
+                @Override
+                public byte[] getBody(List<String> envelopes) throws IOException
+                {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    try (OutputStream out = new GZIPOutputStream(bytes))
+                    {
+                        for (String envelope : envelopes)
+                        {
+                            out.write(envelope.getBytes(StandardCharsets.UTF_8));
+                            out.write('\n');
+                        }
+                    }
+                    return bytes.toByteArray();
+                }
+            };
+
+    private final String _label;
+    private final String _contentType;
+    private final String _contentEncoding;
+
+    PayloadFormat(String label, String contentType, @Nullable String contentEncoding)
+    {
+        _label = label;
+        _contentType = contentType;
+        _contentEncoding = contentEncoding;
+    }
+
+    public String getLabel()
+    {
+        return _label;
+    }
+
+    public String getContentType()
+    {
+        return _contentType;
+    }
+
+    @Nullable
+    public String getContentEncoding()
+    {
+        return _contentEncoding;
+    }
+
+    public boolean isBatch()
+    {
+        return true;
+    }
+
+    /**
+     * Build the request body for a set of response envelopes
+     * @param envelopes JSON envelope of each response, one for Single
+     * @return the encoded body
+     * @throws IOException if the body can't be encoded
+     */
+    public abstract byte[] getBody(List<String> envelopes) throws IOException;
+}
@@ -36,14 +36,11 @@ import org.quartz.JobExecutionContext;
 import org.quartz.JobExecutionException;
 
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
 import java.util.concurrent.Callable;
 
 public class SurveyResponseForwardingJob implements org.quartz.Job, Callable<String>
 {
     private static final Logger logger = LogManager.getLogger(SurveyResponseForwardingJob.class);
-    private static volatile Set<String> unsuccessful = new HashSet<>();
 
     // Private service user
     private static User forwardingUser;
@@ -61,25 +58,35 @@ public class SurveyResponseForwardingJob implements org.quartz.Job, Callable<Str
     public String call() throws Exception
     {
         User user = getForwardingUser();
-        ForwardingScheduler.get().enabledContainers().forEach(c -> call(user, ContainerManager.getForId(c)));
+        ForwardingScheduler.get().enabledContainers().forEach(id -> {
+            Container c = ContainerManager.getForId(id);
+            if (c != null)
+                ForwardingDispatcher.get().dispatch(c, user);
+        });
 
         return "Pipeline jobs enqueued.";
     }
 
-    public void call(User user, Container c)
+    /**
+     * Queue a pipeline job to forward the container's responses, if forwarding is enabled and there is anything to
+     * forward. Callers should go through the ForwardingDispatcher, which keeps to one active job per container.
+     * @return true if a job was queued
+     */
+    boolean call(User user, Container c)
     {
         if (!validateCall(c))
-            return;
+            return false;
 
         try
         {
             logger.info(String.format("Adding pipeline job to forward responses for container [%1$s].", c.getName()));
-            enqueuePipelineJob(user, c);
+            return enqueuePipelineJob(user, c);
         }
         catch (ConfigurationException e)
         {
             logger.error(e.getLocalizedMessage());
-            setUnsuccessful(c);
+            setUnsuccessful(c, e.getLocalizedMessage());
+            return false;
         }
     }
 
@@ -97,16 +104,21 @@ public class SurveyResponseForwardingJob implements org.quartz.Job, Callable<Str
         {
             msg = String.format("Forwarding not enabled for container [%1$s].", c.getName());
         }
-        //Check if container was unsuccessful recently
-        else if (unsuccessful.contains(c.getId()))
+        //Check if container's endpoint is backing off after failures
+        else if (ForwardingCircuitBreaker.get().isTripped(c))
         {
-            msg = String.format("Not forwarding survey responses for container [%1$s] because target endpoint is marked as unsuccessful.", c.getName());
+            msg = String.format("Not forwarding survey responses for container [%1$s] because the forwarding circuit is open.", c.getName());
         }
         // Check if anything to process
         else if (!MobileAppStudyManager.get().hasResponsesToForward(c))
         {
             msg = String.format("No responses to forward for [%1$s]", c.getName());
         }
+        // Claim the probe if the circuit is due to be retried, it may have been claimed since it was checked above
+        else if (!ForwardingCircuitBreaker.get().allowRequest(c))
+        {
+            msg = String.format("Not forwarding survey responses for container [%1$s] because a probe job is already running.", c.getName());
+        }
 
         if (StringUtils.isNotBlank(msg))
         {
@@ -117,7 +129,7 @@ public class SurveyResponseForwardingJob implements org.quartz.Job, Callable<Str
             return true;
     }
 
-    private void enqueuePipelineJob(User user, Container c)
+    private boolean enqueuePipelineJob(User user, Container c)
     {
         ViewBackgroundInfo vbi = new ViewBackgroundInfo(c, user, null);
         PipeRoot root = PipelineService.get().findPipelineRoot(c);
@@ -135,11 +147,13 @@ public class SurveyResponseForwardingJob implements org.quartz.Job, Callable<Str
                     c.getName(), Thread.currentThread().getName(), PipelineService.get().toString()));
             PipelineService.get().queueJob(job);
             logger.debug(String.format("Job [%1$s] added", job.getJobGUID()));
+            return true;
         }
         catch (PipelineValidationException e)
         {
-            setUnsuccessful(c);
+            setUnsuccessful(c, e.getLocalizedMessage());
             logger.error(e.getLocalizedMessage());
+            return false;
         }
     }
 
@@ -148,8 +162,6 @@ public class SurveyResponseForwardingJob implements org.quartz.Job, Callable<Str
     {
         try
         {
-            // Reset success status
-            unsuccessful = new HashSet<>();
             this.call();
         }
         catch (Exception e)
@@ -158,8 +170,8 @@ public class SurveyResponseForwardingJob implements org.quartz.Job, Callable<Str
         }
     }
 
-    public void setUnsuccessful(Container c)
+    public void setUnsuccessful(Container c, String message)
     {
-        unsuccessful.add(c.getId());
+        ForwardingCircuitBreaker.get().recordFailure(c, message);
     }
 }
@@ -25,10 +25,14 @@ import org.labkey.mobileappstudy.MobileAppStudyManager;
 import org.labkey.mobileappstudy.data.SurveyResponse;
 
 import java.io.File;
-import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
 
 public class SurveyResponsePipelineJob extends PipelineJob
 {
+    // Number of responses read into memory at a time
+    private static final int PAGE_SIZE = 500;
 
     // For serialization
     protected SurveyResponsePipelineJob()
@@ -55,16 +59,20 @@ public class SurveyResponsePipelineJob extends PipelineJob
     @Override
     public void run()
     {
-        this.setStatus(TaskStatus.running);
-        Container container = getContainer();
-
-        Collection<SurveyResponse> responses = MobileAppStudyManager.get().getResponsesByStatus(SurveyResponse.ResponseStatus.PROCESSED, container);
-        if (responses.size() == 0)
+        try
         {
-            info("No responses to forward");
-            this.setStatus(TaskStatus.complete);
-            return;
+            forward();
         }
+        finally
+        {
+            ForwardingDispatcher.get().finished(getContainer(), getUser());
+        }
+    }
+
+    private void forward()
+    {
+        this.setStatus(TaskStatus.running);
+        Container container = getContainer();
 
         Forwarder forwarder = ForwarderProperties.getForwardingType(container).getForwarder(getContainer(), getLogger());
         if (forwarder == null)
@@ -74,29 +82,57 @@ public class SurveyResponsePipelineJob extends PipelineJob
             return;
         }
 
+        MobileAppStudyManager manager = MobileAppStudyManager.get();
+        List<SurveyResponse> responses = manager.claimResponsesToForward(container, 0, PAGE_SIZE);
+        if (responses.size() == 0)
+        {
+            info("No responses to forward");
+            ForwardingCircuitBreaker.get().releaseProbe(container);
+            this.setStatus(TaskStatus.complete);
+            return;
+        }
+
         String url = forwarder.getForwardingEndpoint();
-        debug(String.format("Forwarding %1$s response(s) to: %2$s", responses.size(), url));
-        for (SurveyResponse response : responses)
+        int forwarded = 0;
+        while (!responses.isEmpty())
         {
+            debug(String.format("Forwarding %1$s response(s) to: %2$s", responses.size(), url));
             try
             {
-                if (forwarder.makeRequest(getUser(), response) == TaskStatus.error)
+                if (forwarder.forwardResponses(getUser(), responses) == TaskStatus.error)
                 {
-                    //Error handled within request method
+                    //Error handled within forwarder
+                    releaseClaims(responses);
                     setStatus(TaskStatus.error);
                     return;
                 }
+                forwarded += responses.size();
             }
             catch (Throwable e)
             {
+                releaseClaims(responses);
                 this.setStatus(TaskStatus.error);
-                error(String.format("Failed forwarding responseId [%1$s] with: %2$s", response.getRowId(), e.getLocalizedMessage()), e);
-                MobileAppStudyManager.get().setForwardingJobUnsucessful(container);
+                error(String.format("Failed forwarding responses with: %1$s", e.getLocalizedMessage()), e);
+                manager.setForwardingJobUnsucessful(container, e.getLocalizedMessage());
                 return;
             }
+
+            // Page on RowId rather than offset, since claimed responses drop out of the PROCESSED set
+            int lastRowId = responses.get(responses.size() - 1).getRowId();
+            responses = responses.size() < PAGE_SIZE ? Collections.emptyList() :
+                    manager.claimResponsesToForward(container, lastRowId, PAGE_SIZE);
         }
 
-        info(String.format("Forwarding completed. %1$s response(s) sent to %2$s.", responses.size(), url));
+        info(String.format("Forwarding completed. %1$s response(s) sent to %2$s.", forwarded, url));
+        manager.setForwardingJobSuccessful(container);
         this.setStatus(TaskStatus.complete);
     }
+
+    /**
+     * Return the page's responses that weren't forwarded, so they can be claimed by a later job
+     */
+    private void releaseClaims(List<SurveyResponse> responses)
+    {
+        MobileAppStudyManager.get().releaseForwardingClaims(responses.stream().map(SurveyResponse::getRowId).collect(Collectors.toList()));
+    }
 }
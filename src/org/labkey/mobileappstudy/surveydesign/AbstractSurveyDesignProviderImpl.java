@@ -30,6 +30,11 @@ import java.io.IOException;
  */
 public abstract class AbstractSurveyDesignProviderImpl implements SurveyDesignProvider
 {
+    // Configured once and shared, mappers are thread-safe once configured
+    private static final ObjectMapper surveyMapper = new ObjectMapper();
+    private static final ObjectMapper participantPropertiesMapper = new ObjectMapper()
+            .configure(MapperFeature.ACCEPT_CASE_INSENSITIVE_ENUMS, true);
+
     protected Container container;
     protected final Logger logger;
 
@@ -43,8 +48,7 @@ public abstract class AbstractSurveyDesignProviderImpl implements SurveyDesignPr
     {
         try
         {
-            ObjectMapper mapper = new ObjectMapper();
-            ActivityMetadataResponse response = mapper.readValue(contents, ActivityMetadataResponse.class);
+            ActivityMetadataResponse response = surveyMapper.readValue(contents, ActivityMetadataResponse.class);
             return response == null ? null : response.getActivity();
         }
         catch (IOException e)
@@ -57,9 +61,7 @@ public abstract class AbstractSurveyDesignProviderImpl implements SurveyDesignPr
     {
         try
         {
-            ObjectMapper mapper = new ObjectMapper();
-            mapper.configure(MapperFeature.ACCEPT_CASE_INSENSITIVE_ENUMS, true);
-            ParticipantPropertiesDesign response = mapper.readValue(contents, ParticipantPropertiesDesign.class);
+            ParticipantPropertiesDesign response = participantPropertiesMapper.readValue(contents, ParticipantPropertiesDesign.class);
             return response == null ? null : response;
         }
         catch (IOException e)
@@ -24,12 +24,11 @@ import org.labkey.mobileappstudy.MobileAppStudyModule;
 import org.labkey.mobileappstudy.participantproperties.ParticipantPropertiesDesign;
 
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.NoSuchFileException;
 
 /**
- * Get MobileAppStudy SurveySchema from a resource file
+ * Get MobileAppStudy SurveySchema from a resource file. Parsed designs are kept in memory until their file changes,
+ * see SurveyDesignFileIndex.
  */
 public class FileSurveyDesignProvider extends AbstractSurveyDesignProviderImpl
 {
@@ -44,11 +43,12 @@ public class FileSurveyDesignProvider extends AbstractSurveyDesignProviderImpl
         try
         {
             //TODO: make this more flexible
-            StringBuilder sb = new StringBuilder();
-            Path filePath = Paths.get(getBasePath(c), String.join("_", studyId, activityId, version) + ".json");
-            Files.readAllLines(filePath).forEach(sb::append);
+            String fileName = String.join("_", studyId, activityId, version) + ".json";
+            SurveyDesign design = SurveyDesignFileIndex.get().getDesign(getBasePath(c), fileName, this::getSurveyDesign);
+            if (design == null)
+                throw new NoSuchFileException(fileName);
 
-            return getSurveyDesign(sb.toString());
+            return design;
         }
         catch (IOException x)
         {
@@ -61,13 +61,8 @@ public class FileSurveyDesignProvider extends AbstractSurveyDesignProviderImpl
     {
         try
         {
-            StringBuilder sb = new StringBuilder();
-            Path filePath = Paths.get(getBasePath(c), String.join("_", shortName, "ParticipantProperties") + ".json");
-            if (!Files.exists(filePath))
-                return null; // No test file present
-
-            Files.readAllLines(filePath).forEach(sb::append);
-            return getParticipantPropertiesDesign(sb.toString());
+            String fileName = String.join("_", shortName, "ParticipantProperties") + ".json";
+            return SurveyDesignFileIndex.get().getDesign(getBasePath(c), fileName, this::getParticipantPropertiesDesign); // null if no test file present
         }
         catch (IOException x)
         {
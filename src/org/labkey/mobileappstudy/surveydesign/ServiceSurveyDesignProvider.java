@@ -16,17 +16,24 @@
 package org.labkey.mobileappstudy.surveydesign;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpStatus;
 import org.apache.http.StatusLine;
 import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.impl.client.BasicResponseHandler;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
+import org.labkey.api.cache.Cache;
+import org.labkey.api.cache.CacheManager;
 import org.labkey.api.data.Container;
 import org.labkey.api.module.Module;
 import org.labkey.api.module.ModuleLoader;
@@ -34,10 +41,15 @@ import org.labkey.mobileappstudy.MobileAppStudyModule;
 import org.labkey.mobileappstudy.participantproperties.ParticipantPropertiesDesign;
 
 import java.net.URI;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
 /**
  * Created by susanh on 3/10/17.
+ *
+ * Requests go through a shared pooled client, so connections to the metadata service are kept alive between designs.
+ * Documents are cached by container and request URI. An activity's design is fixed for a version and is served from
+ * the cache; the participant properties design has no version, so it is revalidated with its ETag on each request.
  */
 public class ServiceSurveyDesignProvider extends AbstractSurveyDesignProviderImpl
 {
@@ -46,6 +58,12 @@ public class ServiceSurveyDesignProvider extends AbstractSurveyDesignProviderImp
     private static final String VERSION_PARAM = "activityVersion";
     private static final String PARTICIPANT_PROPERTIES_ACTION = "participantProperties";
     private static final String ACTIVITY_ACTION = "activity";
+    private static final int CONNECT_TIMEOUT_MS = (int) TimeUnit.SECONDS.toMillis(30);
+    private static final int SOCKET_TIMEOUT_MS = (int) TimeUnit.MINUTES.toMillis(2);
+
+    private static final CloseableHttpClient _httpClient = createHttpClient();
+    private static final Cache<String, DesignDocument> _documentCache =
+            CacheManager.getCache(1000, TimeUnit.HOURS.toMillis(1), "Mobile app survey design documents");
 
     public ServiceSurveyDesignProvider(Container container, Logger logger)
     {
@@ -60,7 +78,7 @@ public class ServiceSurveyDesignProvider extends AbstractSurveyDesignProviderImp
         uriBuilder.setParameter(ACTIVITY_ID_PARAM, activityId);
         uriBuilder.setParameter(VERSION_PARAM, version);
 
-        return getDesign(c, uriBuilder, this::getSurveyDesign);
+        return getDesign(c, uriBuilder, false, this::getSurveyDesign);
     }
 
     @Override
@@ -69,34 +87,71 @@ public class ServiceSurveyDesignProvider extends AbstractSurveyDesignProviderImp
         URIBuilder uriBuilder = new URIBuilder(String.join("/", getServiceUrl(c), PARTICIPANT_PROPERTIES_ACTION));
         uriBuilder.setParameter(STUDY_ID_PARAM, shortName);
 
-        return getDesign(c, uriBuilder, this::getParticipantPropertiesDesign);
+        return getDesign(c, uriBuilder, true, this::getParticipantPropertiesDesign);
     }
 
-    private <DESIGN> DESIGN getDesign(Container c, URIBuilder uriBuilder, Function<String, DESIGN> designProcessor) throws Exception
+    /**
+     * @param revalidate if true, check a cached document is still current with the service before using it
+     */
+    private <DESIGN> DESIGN getDesign(Container c, URIBuilder uriBuilder, boolean revalidate, Function<String, DESIGN> designProcessor) throws Exception
     {
         URI uri = uriBuilder.build();
-        try (CloseableHttpClient httpclient = HttpClients.createDefault())
+        String key = c.getId() + "|" + uri;
+        DesignDocument cached = _documentCache.get(key);
+        if (cached != null && !revalidate)
+            return designProcessor.apply(cached.contents);
+
+        HttpGet httpGet = new HttpGet(uri);
+        httpGet.addHeader("Authorization", "Basic " + getServiceToken(c));
+        if (cached != null && cached.etag != null)
+            httpGet.addHeader(HttpHeaders.IF_NONE_MATCH, cached.etag);
+
+        try (CloseableHttpResponse response = _httpClient.execute(httpGet))
         {
-            HttpGet httpGet = new HttpGet(uri);
-            httpGet.addHeader("Authorization", "Basic " + getServiceToken(c));
+            ResponseHandler<String> handler = new BasicResponseHandler();
+            StatusLine status = response.getStatusLine();
+
+            if (status.getStatusCode() == HttpStatus.SC_NOT_MODIFIED && cached != null)
+            {
+                EntityUtils.consume(response.getEntity());
+                return designProcessor.apply(cached.contents);
+            }
+            else if (status.getStatusCode() == HttpStatus.SC_OK || status.getStatusCode() == HttpStatus.SC_CREATED)
+            {
+                String contents = handler.handleResponse(response);
+                Header etag = response.getFirstHeader(HttpHeaders.ETAG);
 
-            try (CloseableHttpResponse response = httpclient.execute(httpGet))
+                // Only cache documents that parse
+                DESIGN design = designProcessor.apply(contents);
+                _documentCache.put(key, new DesignDocument(contents, etag == null ? null : etag.getValue()));
+                return design;
+            }
+            else
             {
-                ResponseHandler<String> handler = new BasicResponseHandler();
-                StatusLine status = response.getStatusLine();
-
-                if (status.getStatusCode() == HttpStatus.SC_OK || status.getStatusCode() == HttpStatus.SC_CREATED)
-                {
-                    return designProcessor.apply(handler.handleResponse(response));
-                }
-                else
-                {
-                    throw new Exception(String.format("Received response status %d using uri %s", status.getStatusCode(), uri));
-                }
+                // Consume the body so the connection can go back to the pool
+                EntityUtils.consume(response.getEntity());
+                throw new Exception(String.format("Received response status %d using uri %s", status.getStatusCode(), uri));
             }
         }
     }
 
+    private static CloseableHttpClient createHttpClient()
+    {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(20);
+        connectionManager.setDefaultMaxPerRoute(10);
+
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(CONNECT_TIMEOUT_MS)
+                        .setSocketTimeout(SOCKET_TIMEOUT_MS)
+                        .build())
+                .evictExpiredConnections()
+                .evictIdleConnections(1, TimeUnit.MINUTES)
+                .build();
+    }
+
     private static String getServiceToken(Container container)
     {
         Module module = ModuleLoader.getInstance().getModule(MobileAppStudyModule.NAME);
@@ -116,4 +171,16 @@ public class ServiceSurveyDesignProvider extends AbstractSurveyDesignProviderImp
     {
         return !StringUtils.isEmpty(getServiceToken(c)) && !StringUtils.isEmpty(getServiceUrl(c));
     }
+
+    private static class DesignDocument
+    {
+        private final String contents;
+        private final String etag;
+
+        private DesignDocument(String contents, String etag)
+        {
+            this.contents = contents;
+            this.etag = etag;
+        }
+    }
 }
@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.mobileappstudy.surveydesign;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the designs read from survey metadata directories in memory. Each directory is listed once and watched, and
+ * a file's parsed design is kept until the watcher reports the file changed, so designs are read and parsed once
+ * rather than on every response. Directories that can't be watched are read on every request, as before.
+ */
+public class SurveyDesignFileIndex
+{
+    private static final Logger logger = LogManager.getLogger(SurveyDesignFileIndex.class);
+    private static final SurveyDesignFileIndex instance = new SurveyDesignFileIndex();
+
+    // Indexed directories by configured path, and by the key watching them
+    private final Map<String, DesignDirectory> _directories = new ConcurrentHashMap<>();
+    private final Map<WatchKey, DesignDirectory> _watched = new ConcurrentHashMap<>();
+    private volatile WatchService _watchService;
+
+    private SurveyDesignFileIndex()
+    {
+    }
+
+    static SurveyDesignFileIndex get()
+    {
+        return instance;
+    }
+
+    /**
+     * @param basePath configured survey metadata directory
+     * @param fileName of the design file within the directory
+     * @param parser converts the file's contents to a design, the same parser must always be used for a file
+     * @return the parsed design, or null if there is no such file
+     */
+    @Nullable
+    <DESIGN> DESIGN getDesign(@NotNull String basePath, @NotNull String fileName, @NotNull Function<String, DESIGN> parser) throws IOException
+    {
+        DesignDirectory directory = getDirectory(basePath);
+        if (directory == null)
+        {
+            Path filePath = Paths.get(basePath, fileName);
+            return Files.exists(filePath) ? parser.apply(Files.readString(filePath)) : null;
+        }
+
+        return directory.getDesign(fileName, parser);
+    }
+
+    @Nullable
+    private DesignDirectory getDirectory(String basePath)
+    {
+        DesignDirectory directory = _directories.get(basePath);
+        if (directory != null)
+            return directory;
+
+        Path path = Paths.get(basePath);
+        if (!Files.isDirectory(path))
+            return null;
+
+        synchronized (this)
+        {
+            directory = _directories.get(basePath);
+            if (directory == null)
+            {
+                try
+                {
+                    WatchKey key = path.register(getWatchService(), StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                    directory = new DesignDirectory(basePath, path);
+                    directory.index();
+                    _watched.put(key, directory);
+                    _directories.put(basePath, directory);
+                }
+                catch (IOException | UnsupportedOperationException e)
+                {
+                    logger.warn(String.format("Unable to watch survey metadata directory [%1$s], design files will be read on each request.", basePath), e);
+                    return null;
+                }
+            }
+            return directory;
+        }
+    }
+
+    private WatchService getWatchService() throws IOException
+    {
+        if (_watchService == null)
+        {
+            _watchService = FileSystems.getDefault().newWatchService();
+            Thread watcher = new Thread(this::watch, "MobileAppSurveyDesignWatcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+        return _watchService;
+    }
+
+    private void watch()
+    {
+        while (true)
+        {
+            WatchKey key;
+            try
+            {
+                key = _watchService.take();
+            }
+            catch (InterruptedException | ClosedWatchServiceException e)
+            {
+                return;
+            }
+
+            DesignDirectory directory = _watched.get(key);
+            for (WatchEvent<?> event : key.pollEvents())
+            {
+                if (directory == null)
+                    continue;
+
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                    directory.reindex();
+                else
+                    directory.changed(event.kind(), ((Path) event.context()).getFileName().toString());
+            }
+
+            // Directory is no longer accessible, index it again if it is requested
+            if (!key.reset())
+            {
+                _watched.remove(key);
+                if (directory != null)
+                    _directories.remove(directory.basePath, directory);
+            }
+        }
+    }
+
+    private static class DesignDirectory
+    {
+        private final String basePath;
+        private final Path path;
+        private final Map<String, Object> designs = new ConcurrentHashMap<>();
+        // Bumped on each change, so a design read while its file changed isn't kept
+        private final AtomicLong generation = new AtomicLong();
+        private volatile Set<String> files = Set.of();
+
+        private DesignDirectory(String basePath, Path path)
+        {
+            this.basePath = basePath;
+            this.path = path;
+        }
+
+        private void index() throws IOException
+        {
+            try (Stream<Path> paths = Files.list(path))
+            {
+                files = paths.map(p -> p.getFileName().toString()).collect(Collectors.toCollection(ConcurrentHashMap::newKeySet));
+            }
+        }
+
+        private void reindex()
+        {
+            generation.incrementAndGet();
+            designs.clear();
+            try
+            {
+                index();
+            }
+            catch (IOException e)
+            {
+                logger.warn(String.format("Unable to list survey metadata directory [%1$s].", basePath), e);
+            }
+        }
+
+        private void changed(WatchEvent.Kind<?> kind, String fileName)
+        {
+            generation.incrementAndGet();
+            designs.remove(fileName);
+            if (kind == StandardWatchEventKinds.ENTRY_DELETE)
+                files.remove(fileName);
+            else
+                files.add(fileName);
+        }
+
+        @SuppressWarnings("unchecked")
+        private <DESIGN> DESIGN getDesign(String fileName, Function<String, DESIGN> parser) throws IOException
+        {
+            if (!files.contains(fileName))
+                return null;
+
+            DESIGN design = (DESIGN) designs.get(fileName);
+            if (design == null)
+            {
+                long current = generation.get();
+                design = parser.apply(Files.readString(path.resolve(fileName)));
+                if (design != null && generation.get() == current)
+                    designs.put(fileName, design);
+            }
+            return design;
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        private static final long WATCH_TIMEOUT_MS = 10_000;
+
+        private final SurveyDesignFileIndex _index = new SurveyDesignFileIndex();
+        private final AtomicInteger _parses = new AtomicInteger();
+        private Path _dir;
+
+        @Before
+        public void setUp() throws IOException
+        {
+            _dir = Files.createTempDirectory("SurveyDesignFileIndex");
+        }
+
+        @After
+        public void tearDown() throws IOException
+        {
+            if (_index._watchService != null)
+                _index._watchService.close();
+
+            try (Stream<Path> paths = Files.walk(_dir))
+            {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toArray(Path[]::new))
+                    Files.deleteIfExists(path);
+            }
+        }
+
+        @Test
+        public void testCachesParsedDesign() throws IOException
+        {
+            Files.writeString(_dir.resolve("survey.txt"), "v1");
+            assertEquals("v1", getDesign("survey.txt"));
+            assertEquals("v1", getDesign("survey.txt"));
+            assertEquals("Design should only be parsed once", 1, _parses.get());
+            assertNull(getDesign("missing.txt"));
+        }
+
+        @Test
+        public void testFileChanges() throws Exception
+        {
+            Files.writeString(_dir.resolve("survey.txt"), "v1");
+            assertEquals("v1", getDesign("survey.txt"));
+            assertNull(getDesign("added.txt"));
+
+            Files.writeString(_dir.resolve("survey.txt"), "v2");
+            Files.writeString(_dir.resolve("added.txt"), "a1");
+            waitFor("v2", "survey.txt");
+            waitFor("a1", "added.txt");
+
+            Files.delete(_dir.resolve("survey.txt"));
+            waitFor(null, "survey.txt");
+        }
+
+        @Test
+        public void testMissingDirectory() throws IOException
+        {
+            assertNull(_index.getDesign(_dir.resolve("missing").toString(), "survey.txt", this::parse));
+        }
+
+        private String getDesign(String fileName) throws IOException
+        {
+            return _index.getDesign(_dir.toString(), fileName, this::parse);
+        }
+
+        private String parse(String contents)
+        {
+            _parses.incrementAndGet();
+            return contents;
+        }
+
+        /**
+         * The watcher reports changes asynchronously, so poll until the change is seen
+         */
+        private void waitFor(@Nullable String expected, String fileName) throws Exception
+        {
+            long timeout = System.currentTimeMillis() + WATCH_TIMEOUT_MS;
+            String design = getDesign(fileName);
+            while (!Objects.equals(expected, design) && System.currentTimeMillis() < timeout)
+            {
+                Thread.sleep(50);
+                design = getDesign(fileName);
+            }
+            assertEquals(expected, design);
+        }
+    }
+}
@@ -6,8 +6,10 @@
 <%@ page import="org.labkey.mobileappstudy.MobileAppStudyController.ForwardingSettingsAction" %>
 <%@ page import="org.labkey.mobileappstudy.MobileAppStudyController.ForwardingSettingsForm" %>
 <%@ page import="org.labkey.mobileappstudy.MobileAppStudyManager" %>
+<%@ page import="org.labkey.mobileappstudy.forwarder.Forwarder" %>
 <%@ page import="org.labkey.mobileappstudy.forwarder.ForwarderProperties" %>
 <%@ page import="org.labkey.mobileappstudy.forwarder.ForwardingType" %>
+<%@ page import="org.labkey.mobileappstudy.forwarder.PayloadFormat" %>
 <%@ page import="java.util.Map" %>
 <%@ page extends="org.labkey.api.jsp.JspBase" %>
 <%@ taglib prefix="labkey" uri="http://www.labkey.org/taglib" %>
@@ -40,6 +42,11 @@
     String oauthTokenFieldPath = forwardingProperties.get(ForwarderProperties.TOKEN_FIELD);
     String oauthTokenHeader= forwardingProperties.get(ForwarderProperties.TOKEN_HEADER);
     String oauthURL = forwardingProperties.get(ForwarderProperties.OAUTH_URL);
+
+    String maxInFlight = StringUtils.defaultIfBlank(forwardingProperties.get(ForwarderProperties.MAX_IN_FLIGHT), String.valueOf(Forwarder.DEFAULT_MAX_IN_FLIGHT));
+    boolean preserveOrder = Boolean.parseBoolean(forwardingProperties.get(ForwarderProperties.PRESERVE_ORDER));
+    String payloadFormatName = StringUtils.defaultIfBlank(forwardingProperties.get(ForwarderProperties.PAYLOAD_FORMAT), PayloadFormat.Single.name());
+    String batchSize = StringUtils.defaultIfBlank(forwardingProperties.get(ForwarderProperties.PAYLOAD_BATCH_SIZE), String.valueOf(Forwarder.DEFAULT_BATCH_SIZE));
 %>
 
 <labkey:errors></labkey:errors>
@@ -72,6 +79,20 @@
             <labkey:input type="text" className=" form-control lk-forwarder-input" label="Header Name" name="header" value="<%=oauthTokenHeader%>" />
             <labkey:input type="text" className=" form-control lk-forwarder-input lk-forwarder-url" label="Endpoint URL" name="oauthURL" value="<%=oauthURL%>" />
         </div>
+        <div id="deliveryPanel" class=" form-group">
+            <labkey:input type="text" className=" form-control lk-forwarder-input" label="Concurrent Requests" name="maxInFlight" value="<%=maxInFlight%>" />
+            <label>
+                <input type="checkbox" name="preserveOrder" value="true"<%=checked(preserveOrder)%>/>
+                Send responses one at a time, in order
+            </label><br>
+            <label for="payloadFormat">Payload Format</label>
+            <select id="payloadFormat" name="payloadFormat" class=" form-control lk-forwarder-input">
+            <% for (PayloadFormat format : PayloadFormat.values()) { %>
+                <option value="<%=format%>"<%=selected(format.name().equals(payloadFormatName))%>><%=h(format.getLabel())%></option>
+            <% } %>
+            </select>
+            <labkey:input type="text" className=" form-control lk-forwarder-input" label="Responses per Request" name="batchSize" value="<%=batchSize%>" />
+        </div>
     </div>
     <div id="buttonBar">
         <button id="forwarderSubmitButton" type="submit" class="labkey-button primary" >Submit</button>
@@ -20,6 +20,9 @@ import org.jetbrains.annotations.Nullable;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
+import org.labkey.remoteapi.Command;
+import org.labkey.remoteapi.CommandException;
+import org.labkey.remoteapi.CommandResponse;
 import org.labkey.remoteapi.query.SelectRowsResponse;
 import org.labkey.test.TestFileUtils;
 import org.labkey.test.categories.Git;
@@ -34,6 +37,7 @@ import org.labkey.test.data.mobileappstudy.QuestionResponse;
 import org.labkey.test.data.mobileappstudy.Survey;
 import org.labkey.test.pages.mobileappstudy.SetupPage;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
@@ -57,6 +61,9 @@ public class StudyWithdrawTest extends BaseMobileAppStudyTest
             "InitialSurveyRxWhyDifferent","InitialSurveySupplements");
     private final static String SURVEY_NAME = "InitialSurvey";
     private final static String SURVEY_VERSION = "123.9";
+    private static final String PURGE_COMPLETE = "Complete";
+    private static final String PURGE_ERROR = "Error";
+    private static final int PURGE_WAIT = 2 * 60 * 1000;
     private static String HAS_RESPONSES_DELETE;
     private static String HAS_RESPONSES_NO_DELETE;
     private static String NO_RESPONSES_DELETE;
@@ -203,6 +210,10 @@ public class StudyWithdrawTest extends BaseMobileAppStudyTest
             errorMsg.append("User " + SI_KEY + " still shown as enrolled in Participant after withdrawing.\n");
 
         log("verify participant data deletion");
+        //Data is deleted in the background after withdrawal
+        waitForPurge(HRD_KEY);
+        waitForPurge(NRD_KEY);
+
         //Users who have elected to have data deleted should have responses deleted
         if(tablesWithParticipantData(HRD_KEY).size()!=0)
             errorMsg.append("Data found for user " + HRD_KEY + " that should have been deleted.\n");
@@ -240,6 +251,50 @@ public class StudyWithdrawTest extends BaseMobileAppStudyTest
         Assert.assertTrue(errorMsg.toString(), errorMsg.length() == 0);
     }
 
+    private void waitForPurge(String participantId)
+    {
+        log("wait for participant " + participantId + "'s data to be deleted");
+        waitFor(() -> PURGE_COMPLETE.equals(getPurgeStatus(participantId)),
+                "Deletion of participant " + participantId + "'s data did not complete", PURGE_WAIT);
+    }
+
+    /**
+     * @return the status of the most recent purge of the participant's data, or null if there is none
+     */
+    @Nullable
+    private String getPurgeStatus(String participantId)
+    {
+        try
+        {
+            Command command = new Command("mobileAppStudy", "participantPurgeStatus");
+            CommandResponse response = command.execute(createDefaultConnection(true), getProjectName());
+            List<Map<String, Object>> purges = response.getProperty("data");
+            for (Map<String, Object> purge : purges)
+            {
+                if (participantId.equals(String.valueOf(getIgnoreCase(purge, "ParticipantId"))))
+                {
+                    String status = String.valueOf(getIgnoreCase(purge, "Status"));
+                    if (PURGE_ERROR.equals(status))
+                        Assert.fail("Deletion of participant " + participantId + "'s data failed: " + getIgnoreCase(purge, "ErrorMessage"));
+                    return status;
+                }
+            }
+            return null;
+        }
+        catch (IOException | CommandException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Object getIgnoreCase(Map<String, Object> row, String key)
+    {
+        return row.entrySet().stream()
+                .filter(entry -> entry.getKey().equalsIgnoreCase(key))
+                .map(Map.Entry::getValue)
+                .findFirst().orElse(null);
+    }
+
     private SelectRowsResponse getMobileAppData(String table)
     {
         return getMobileAppData(table, MOBILEAPP_SCHEMA);